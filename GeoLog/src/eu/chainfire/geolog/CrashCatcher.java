@@ -64,6 +64,8 @@ public class CrashCatcher implements Thread.UncaughtExceptionHandler {
 		} catch (Exception e) {			
 		}
 		
+		Debug.flush();
+		
 		if (oldHandler != null)	oldHandler.uncaughtException(thread, ex);
 	}
 }
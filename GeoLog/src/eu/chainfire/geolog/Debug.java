@@ -16,47 +16,256 @@
 
 package eu.chainfire.geolog;
 
+import java.io.BufferedOutputStream;
+import java.io.File;
 import java.io.FileOutputStream;
+import java.io.OutputStream;
 import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
 
 import android.os.SystemClock;
 import android.util.Log;
 
+// log() only claims a slot in a lock-free ring buffer and stores the message and time. A 
+// flusher thread formats the messages and writes them to FILE_LOG (kept open, written in 
+// batches) and logcat. When the file reaches MAX_LOG_SIZE it is moved to FILE_LOG_OLD and a new
+// one is started. If the ring is full, messages are dropped rather than blocking the caller, 
+// the number dropped is logged once there is room again.
+// Messages have a category and a level, and are only logged if the category's level is at least
+// as verbose. log(category, level, format, args...) formats on the flusher thread, the args must
+// not change afterwards. Varargs still box and allocate, hot paths should check isEnabled() 
+// first. In release builds everything is disabled and isEnabled() folds to false.
 public class Debug {
+	public static final int GENERAL = 0;
+	public static final int SERVICE = 1;
+	public static final int DATABASE = 2;
+	public static final int EXPORT = 3;
+	private static final int CATEGORIES = 4;
+	
+	public static final int NONE = 0;
+	public static final int INFO = 1;
+	public static final int VERBOSE = 2;
+	
+
 	public static final String FILE_LOG = Application.SDCARD_PATH + "/log";
+	public static final String FILE_LOG_OLD = Application.SDCARD_PATH + "/log.1";
+	
+	private static final int RING_SIZE = 16384; // power of 2
+	private static final long MAX_LOG_SIZE = 4 * 1024 * 1024;
+	private static final long FLUSH_INTERVAL = 50; // ms
+	
+	private static final int[] levels = new int[CATEGORIES];
+	
+	private static final String[] ringMessage = new String[RING_SIZE];
+	private static final Object[][] ringArgs = new Object[RING_SIZE][];
+	private static final long[] ringTime = new long[RING_SIZE];
+	private static final AtomicLongArray ringPublished = new AtomicLongArray(RING_SIZE); // sequence + 1 once written
+	private static final AtomicLong head = new AtomicLong(0); // next sequence to claim
+	private static final AtomicLong dropped = new AtomicLong(0);
+	private static volatile long tail = 0; // next sequence to flush
 	
-	private static boolean initialized = false;
 	private static long start = 0L;
+	private static Thread flusher = null;
+	
+	static {
+		if (BuildConfig.DEBUG) {
+			for (int i = 0; i < CATEGORIES; i++) levels[i] = VERBOSE;
+			start = SystemClock.elapsedRealtime();
+			flusher = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					flushLoop();
+				}
+			}, "Debug");
+			flusher.setDaemon(true);
+			flusher.setPriority(Thread.MIN_PRIORITY);
+			flusher.start();
+		}
+	}
+	
+	public static boolean isEnabled(int category, int level) {
+		return BuildConfig.DEBUG && (level <= levels[category]);
+	}
+	
+	public static int getLevel(int category) {
+		return levels[category];
+	}
+	
+	// no effect in release builds
+	public static void setLevel(int category, int level) {
+		if (BuildConfig.DEBUG) levels[category] = level;
+	}
 	
 	public static void log(String message) {
-		if (BuildConfig.DEBUG) {	
-			if (!initialized) {
-				start = SystemClock.elapsedRealtime();
-				initialized = true;
+		if (isEnabled(GENERAL, INFO)) enqueue(message, null);
+	}
+	
+	public static void log(int category, int level, String message) {
+		if (isEnabled(category, level)) enqueue(message, null);
+	}
+	
+	// String.format(Locale.ENGLISH, format, args), on the flusher thread
+	public static void log(int category, int level, String format, Object... args) {
+		if (isEnabled(category, level)) enqueue(format, args);
+	}
+	
+	private static void enqueue(String message, Object[] args) {
+		long time = SystemClock.elapsedRealtime();
+		
+		long seq;
+		do {
+			seq = head.get();
+			if (seq - tail >= RING_SIZE) {
+				dropped.incrementAndGet();
+				return;
+			}
+		} while (!head.compareAndSet(seq, seq + 1));
+		
+		int slot = (int)seq & (RING_SIZE - 1);
+		ringTime[slot] = time;
+		ringMessage[slot] = message;
+		ringArgs[slot] = args;
+		ringPublished.set(slot, seq + 1);
+		
+		// don't wait for the interval if the ring is filling up
+		if (seq - tail == RING_SIZE / 2) LockSupport.unpark(flusher);
+	}
+	
+	// waits until everything logged so far has been written, for example before the process dies
+	public static void flush() {
+		if (BuildConfig.DEBUG) {
+			long until = head.get();
+			long timeout = SystemClock.elapsedRealtime() + 1000;
+			while ((tail < until) && (SystemClock.elapsedRealtime() < timeout)) {
+				LockSupport.unpark(flusher);
+				try {
+					Thread.sleep(1);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+	}
+	
+	private static void flushLoop() {
+		File file = new File(FILE_LOG);
+		OutputStream os = null;
+		long size = 0;
+		StringBuilder line = new StringBuilder(256);
+		byte[] bytes = new byte[256];
+		
+		while (true) {
+			long seq = tail;
+			int slot = (int)seq & (RING_SIZE - 1);
+			if (ringPublished.get(slot) != seq + 1) {
+				if (head.get() > seq) {
+					// claimed but not written yet, that's only a few instructions away
+					Thread.yield();
+					continue;
+				}
+				
+				// empty
+				if (os != null) {
+					try {
+						os.flush();
+					} catch (Exception e) {
+					}
+				}
+				LockSupport.parkNanos(FLUSH_INTERVAL * 1000000L);
+				continue;
+			}
+			
+			String message = ringMessage[slot];
+			Object[] args = ringArgs[slot];
+			long time = ringTime[slot];
+			ringMessage[slot] = null;
+			ringArgs[slot] = null;
+			tail = seq + 1;
+			
+			if (args != null) {
+				try {
+					message = String.format(Locale.ENGLISH, message, args);
+				} catch (Exception e) {
+					message = "[bad format] " + message;
+				}
 			}
 			
+			long n = dropped.getAndSet(0);
+			if (n > 0) message = "[" + String.valueOf(n) + " messages dropped] " + message;
+			
 			if (FILE_LOG != null) {
-				long uptime = SystemClock.elapsedRealtime();
-				if (uptime < start) start = uptime;
-				uptime -= start;
-
-				long ms = uptime % 1000;
-				uptime /= 1000;
-				long s = uptime % 60;
-				uptime /= 60;
-				long m = uptime % 60;
-				uptime /= 60;
-				long h = uptime;
-
 				try {
-					FileOutputStream fos = new FileOutputStream(FILE_LOG, true);
-					fos.write(String.format(Locale.ENGLISH, "[%02d:%02d:%02d.%03d]%s%s\r\n", h, m, s, ms, (message.startsWith("[") ? "" : " "), message).getBytes("US-ASCII"));
-					fos.close();
-				} catch (Exception e) {		
+					if ((os != null) && (size >= MAX_LOG_SIZE)) {
+						os.close();
+						os = null;
+						File old = new File(FILE_LOG_OLD);
+						old.delete();
+						file.renameTo(old);
+					}
+					if (os == null) {
+						os = new BufferedOutputStream(new FileOutputStream(file, true), 64 * 1024);
+						size = file.length();
+					}
+					
+					format(line, time, message);
+					int len = line.length();
+					if (bytes.length < len) bytes = new byte[len * 2];
+					for (int i = 0; i < len; i++) bytes[i] = (byte)line.charAt(i);
+					os.write(bytes, 0, len);
+					size += len;
+				} catch (Exception e) {
+					// try again on the next message
+					if (os != null) {
+						try {
+							os.close();
+						} catch (Exception e2) {
+						}
+					}
+					os = null;
 				}
 			}
 			
 			Log.d("GeoLog", "[GeoLog]" + (!message.startsWith("[") && !message.startsWith(" ") ? " " : "") + message);			
 		}
 	}
+	
+	private static void pad(StringBuilder sb, long value, int digits) {
+		if ((digits >= 3) && (value < 100)) sb.append('0');
+		if (value < 10) sb.append('0');
+		sb.append(value);
+	}
+	
+	// [hh:mm:ss.mmm] message, US-ASCII
+	private static void format(StringBuilder sb, long time, String message) {
+		long uptime = time;
+		if (uptime < start) start = uptime;
+		uptime -= start;
+
+		long ms = uptime % 1000;
+		uptime /= 1000;
+		long s = uptime % 60;
+		uptime /= 60;
+		long m = uptime % 60;
+		uptime /= 60;
+		long h = uptime;
+
+		sb.setLength(0);
+		sb.append('[');
+		pad(sb, h, 2);
+		sb.append(':');
+		pad(sb, m, 2);
+		sb.append(':');
+		pad(sb, s, 2);
+		sb.append('.');
+		pad(sb, ms, 3);
+		sb.append(']');
+		if (!message.startsWith("[")) sb.append(' ');
+		for (int i = 0; i < message.length(); i++) {
+			char c = message.charAt(i);
+			sb.append((c < 0x80) ? c : '?');
+		}
+		sb.append("\r\n");
+	}
 }
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2013 Jorrit "Chainfire" Jongma
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.chainfire.geolog.data;
+
+import eu.chainfire.geolog.data.Database.Accuracy;
+import eu.chainfire.geolog.data.Database.Activity;
+
+// Accepts or rejects locations by their reported accuracy distance, with a separate maximum
+// distance (in meters) for every accuracy setting and activity. The thresholds are kept in a
+// matrix indexed by Accuracy and Activity ordinal, so checking a location is a lookup and a
+// single compare. A threshold <= 0 accepts everything, which is also the default.
+// Not thread-safe for writes, do not change thresholds while another thread is filtering.
+public class AccuracyFilter {
+	private final long[][] thresholds = new long[Accuracy.values().length][Activity.values().length];
+
+	public AccuracyFilter() {
+	}
+
+	public AccuracyFilter(AccuracyFilter source) {
+		for (int i = 0; i < thresholds.length; i++) {
+			System.arraycopy(source.thresholds[i], 0, thresholds[i], 0, thresholds[i].length);
+		}
+	}
+
+	// from toArray()
+	public AccuracyFilter(long[] array) {
+		for (int i = 0; i < thresholds.length; i++) {
+			System.arraycopy(array, i * thresholds[i].length, thresholds[i], 0, thresholds[i].length);
+		}
+	}
+
+	// all thresholds, by accuracy then activity
+	public long[] toArray() {
+		long[] array = new long[thresholds.length * thresholds[0].length];
+		for (int i = 0; i < thresholds.length; i++) {
+			System.arraycopy(thresholds[i], 0, array, i * thresholds[i].length, thresholds[i].length);
+		}
+		return array;
+	}
+
+	public long getThreshold(Accuracy accuracy, Activity activity) {
+		return thresholds[accuracy.ordinal()][activity.ordinal()];
+	}
+
+	public AccuracyFilter setThreshold(Accuracy accuracy, Activity activity, long maxDistance) {
+		thresholds[accuracy.ordinal()][activity.ordinal()] = maxDistance;
+		return this;
+	}
+
+	public boolean accept(Accuracy accuracy, Activity activity, float distance) {
+		long threshold = thresholds[accuracy.ordinal()][activity.ordinal()];
+		return (threshold <= 0) || (distance <= threshold);
+	}
+
+	// by Accuracy and Activity ordinal
+	public boolean accept(int accuracy, int activity, float distance) {
+		long threshold = thresholds[accuracy][activity];
+		return (threshold <= 0) || (distance <= threshold);
+	}
+
+	public boolean accept(Database.Location location) {
+		return accept(location.getAccuracySetting(), location.getActivity(), location.getAccuracyDistance());
+	}
+
+	// column = value, with the values the xxxFromInt() functions map to their fallback matched
+	// by exclusion
+	private static String sqlMatch(String column, int value, int fallback, int[] all) {
+		if (value != fallback) return column + " = " + String.valueOf(value);
+		String others = "";
+		for (int other : all) {
+			if (other == fallback) continue;
+			if (others.length() > 0) others += ", ";
+			others += String.valueOf(other);
+		}
+		return column + " NOT IN (" + others + ")";
+	}
+
+	// accept() as SQL expression over the locations table
+	public String toSql() {
+		Accuracy[] accuracies = Accuracy.values();
+		Activity[] activities = Activity.values();
+
+		int[] accuracyValues = new int[accuracies.length];
+		for (int i = 0; i < accuracies.length; i++) accuracyValues[i] = Database.accuracyToInt(accuracies[i]);
+		int[] activityValues = new int[activities.length];
+		for (int i = 0; i < activities.length; i++) activityValues[i] = Database.activityToInt(activities[i]);
+
+		int accuracyFallback = Database.accuracyToInt(Database.accuracyFromInt(-1));
+		int activityFallback = Database.activityToInt(Database.activityFromInt(-1));
+
+		String sql = "";
+		for (int i = 0; i < accuracies.length; i++) {
+			String accuracySql = sqlMatch(Database.Location.COLUMN_NAME_ACCURACY_SETTING, accuracyValues[i], accuracyFallback, accuracyValues);
+
+			boolean all = true;
+			for (int j = 0; j < activities.length; j++) {
+				if (thresholds[i][j] > 0) all = false;
+			}
+
+			if (sql.length() > 0) sql += " OR ";
+			if (all) {
+				sql += "(" + accuracySql + ")";
+				continue;
+			}
+
+			String activitySql = "";
+			for (int j = 0; j < activities.length; j++) {
+				if (activitySql.length() > 0) activitySql += " OR ";
+				activitySql += "(" + sqlMatch(Database.Location.COLUMN_NAME_ACTIVITY, activityValues[j], activityFallback, activityValues);
+				if (thresholds[i][j] > 0) {
+					activitySql += " AND " + Database.Location.COLUMN_NAME_ACCURACY_DISTANCE + " <= " + String.valueOf(thresholds[i][j]);
+				}
+				activitySql += ")";
+			}
+			sql += "((" + accuracySql + ") AND (" + activitySql + "))";
+		}
+		return sql;
+	}
+}
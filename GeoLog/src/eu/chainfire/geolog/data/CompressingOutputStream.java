@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2013 Jorrit "Chainfire" Jongma
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.chainfire.geolog.data;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+// Compresses on its own thread: written data is handed over in blocks through a bounded queue,
+// so deflating overlaps with whatever produces the data (database reads, formatting), and a
+// slow compressor only stalls the producer once QUEUE_BLOCKS blocks are pending. Blocks are
+// recycled, no allocation after the first few writes.
+// close() waits for the compressor to finish and closes the target stream. An error on the
+// compressor thread is thrown from the next write(), flush() or close().
+public class CompressingOutputStream extends OutputStream {
+	public static final int BLOCK_SIZE = 64 * 1024;
+	public static final int QUEUE_BLOCKS = 4;
+
+	private static class Block {
+		public final byte[] data;
+		public int length = 0;
+
+		public Block(int size) {
+			data = new byte[size];
+		}
+	}
+
+	private static final Block END_BLOCK = new Block(0);
+
+	// gzip stream, for .gz files
+	public static CompressingOutputStream gzip(OutputStream os, final int level) throws IOException {
+		return new CompressingOutputStream(new GZIPOutputStream(os, BLOCK_SIZE) {
+			{
+				def.setLevel(level);
+			}
+		});
+	}
+
+	// zip archive with a single entry, for .kmz files (entry doc.kml)
+	public static CompressingOutputStream zip(OutputStream os, String entryName, int level) throws IOException {
+		ZipOutputStream zos = new ZipOutputStream(os);
+		zos.setLevel(level);
+		zos.putNextEntry(new ZipEntry(entryName));
+		return new CompressingOutputStream(zos);
+	}
+
+	private final OutputStream target;
+	private final BlockingQueue<Block> pending = new ArrayBlockingQueue<Block>(QUEUE_BLOCKS + 1);
+	private final BlockingQueue<Block> free = new ArrayBlockingQueue<Block>(QUEUE_BLOCKS + 2);
+	private final Thread thread;
+	private volatile IOException error = null;
+
+	private Block current = new Block(BLOCK_SIZE);
+	private boolean closed = false;
+
+	// target is written to and closed from the compressor thread only
+	public CompressingOutputStream(OutputStream target) {
+		this.target = target;
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				compress();
+			}
+		}, "CompressingOutputStream");
+		thread.start();
+	}
+
+	private void compress() {
+		try {
+			while (true) {
+				Block block = pending.take();
+				if (block == END_BLOCK) break;
+				if (error == null) {
+					try {
+						target.write(block.data, 0, block.length);
+					} catch (IOException e) {
+						// keep taking blocks so the producer doesn't block forever
+						error = e;
+					}
+				}
+				block.length = 0;
+				free.offer(block);
+			}
+			target.close();
+		} catch (IOException e) {
+			if (error == null) error = e;
+		} catch (InterruptedException e) {
+			if (error == null) error = new InterruptedIOException();
+		}
+	}
+
+	private void checkError() throws IOException {
+		if (error != null) throw error;
+	}
+
+	private void handOver() throws IOException {
+		if (current.length == 0) return;
+		try {
+			pending.put(current);
+			current = free.poll();
+			if (current == null) current = new Block(BLOCK_SIZE);
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		checkError();
+		if (current.length == BLOCK_SIZE) handOver();
+		current.data[current.length++] = (byte)b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		checkError();
+		while (len > 0) {
+			if (current.length == BLOCK_SIZE) handOver();
+			int n = Math.min(len, BLOCK_SIZE - current.length);
+			System.arraycopy(b, off, current.data, current.length, n);
+			current.length += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	// hands over what has been written, doesn't wait for it to be compressed
+	@Override
+	public void flush() throws IOException {
+		checkError();
+		handOver();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) return;
+		closed = true;
+		try {
+			handOver();
+		} finally {
+			try {
+				pending.put(END_BLOCK);
+				thread.join();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+		}
+		checkError();
+	}
+}
@@ -16,11 +16,13 @@
 
 package eu.chainfire.geolog.data;
 
+import java.util.ArrayList;
 import java.util.Locale;
 import java.util.concurrent.locks.ReentrantLock;
 
 import com.google.android.gms.location.DetectedActivity;
 
+import eu.chainfire.geolog.Debug;
 import eu.chainfire.geolog.R;
 
 import android.content.ContentValues;
@@ -30,13 +32,16 @@ import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Build;
 import android.provider.BaseColumns;
 import android.support.v4.content.LocalBroadcastManager;
 
 public class Database {
 	private static final String TYPE_TEXT = " TEXT";
 	private static final String TYPE_INTEGER = " INTEGER";		
+	private static final String TYPE_REAL = " REAL";
 	private static final String COMMA_SEP = ",";
 	
 	public static final int INTERVAL_OFF = 0;
@@ -129,13 +134,16 @@ public class Database {
 	}		
 
 	public static class Helper extends SQLiteOpenHelper {
-		public static final int DATABASE_VERSION = 1;
+		public static final int DATABASE_VERSION = 4;
 		public static final String DATABASE_NAME = "geolog.db";
 		
 		public static final String NOTIFY_BROADCAST = "eu.chainfire.geolog.DATABASE.UPDATED";
 		public static final String EXTRA_TABLE = "eu.chainfire.geolog.EXTRA.TABLE";
 		public static final String EXTRA_ID = "eu.chainfire.geolog.EXTRA.ID";
 		
+		// Safety net only, checkpoints are normally run from idle time through checkpoint()
+		public static final int WAL_AUTOCHECKPOINT_PAGES = 2000;
+		
 		private static Helper instance = null;
 						
 		public static Helper getInstance(Context context) {
@@ -143,12 +151,19 @@ public class Database {
 			return instance;
 		}
 		
+		// Serializes all writers. Readers never take it, in WAL mode they work on their own
+		// snapshot and neither block nor are blocked by the writer.
 		private ReentrantLock lock = new ReentrantLock(true);
 		private final Context context;
 		
+		// compiled on first use, only to be used while holding the lock
+		private SQLiteStatement locationInsert = null;
+		private SQLiteStatement locationUpdate = null;
+		
 		private Helper(Context context) {
 			super(context, DATABASE_NAME, null, DATABASE_VERSION);
 			this.context = context;
+			if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) setWriteAheadLoggingEnabled(true);
 			getReadableDatabase();
 			createDefaultEntries(getWritableDatabase());
 		}
@@ -161,6 +176,41 @@ public class Database {
 			lock.unlock();
 		}
 		
+		private SQLiteStatement getLocationInsert() {
+			if (locationInsert == null) locationInsert = getWritableDatabase().compileStatement(Location.SQL_INSERT);
+			return locationInsert;
+		}
+		
+		private SQLiteStatement getLocationUpdate() {
+			if (locationUpdate == null) locationUpdate = getWritableDatabase().compileStatement(Location.SQL_UPDATE);
+			return locationUpdate;
+		}
+		
+		// Passive WAL checkpoint, to be called when no writes are expected for a while. Does not
+		// wait for readers: pages still in use by a running export are left for the next round.
+		// Returns false if a write was in progress and nothing was done.
+		public boolean checkpoint() {
+			if (!lock.tryLock()) return false;
+			try {
+				SQLiteDatabase db = getWritableDatabase();
+				if (!db.isWriteAheadLoggingEnabled()) return true;
+				
+				Cursor cursor = db.rawQuery("PRAGMA wal_checkpoint(PASSIVE)", null);
+				if (cursor != null) {
+					try {
+						if (cursor.moveToFirst()) {
+							Debug.log(Debug.DATABASE, Debug.INFO, "WAL checkpoint: busy=%d log=%d checkpointed=%d", cursor.getInt(0), cursor.getInt(1), cursor.getInt(2));
+						}
+					} finally {
+						cursor.close();
+					}
+				}
+				return true;
+			} finally {
+				lock.unlock();
+			}
+		}
+		
 		public void notifyUri(Uri uri) {
 			context.getContentResolver().notifyChange(uri, null);
 		}
@@ -187,13 +237,60 @@ public class Database {
 			for (String index : Location.SQL_CREATE_INDICES) {
 				db.execSQL(index);
 			}
+			
+			// Requests
+			
+			db.execSQL(Request.SQL_CREATE_TABLE);
+			for (String index : Request.SQL_CREATE_INDICES) {
+				db.execSQL(index);
+			}
+		}
+
+		@Override
+		public void onOpen(SQLiteDatabase db) {
+			super.onOpen(db);
+			
+			if (!db.isReadOnly()) {
+				if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) db.enableWriteAheadLogging();
+				
+				Cursor cursor = db.rawQuery("PRAGMA wal_autocheckpoint=" + String.valueOf(WAL_AUTOCHECKPOINT_PAGES), null);
+				if (cursor != null) {
+					try {
+						cursor.moveToFirst();
+					} finally {
+						cursor.close();
+					}
+				}
+			}
 		}
 
 		@Override
 		public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-			db.execSQL(Profile.SQL_DROP_TABLE);
-			db.execSQL(Location.SQL_DROP_TABLE);
-			onCreate(db);
+			// SQLiteOpenHelper runs this inside a transaction, if any step fails the whole
+			// upgrade is rolled back and the existing data is left untouched
+			
+			if (oldVersion < 2) {
+				for (String sql : Location.SQL_UPGRADE_V2) {
+					db.execSQL(sql);
+				}
+			}
+			
+			if (oldVersion < 3) {
+				// indices, all created with IF NOT EXISTS
+				for (String index : Profile.SQL_CREATE_INDICES) {
+					db.execSQL(index);
+				}
+				for (String index : Location.SQL_CREATE_INDICES) {
+					db.execSQL(index);
+				}
+			}
+			
+			if (oldVersion < 4) {
+				db.execSQL(Request.SQL_CREATE_TABLE);
+				for (String index : Request.SQL_CREATE_INDICES) {
+					db.execSQL(index);
+				}
+			}
 		}
 		
 		private void createDefaultEntries(SQLiteDatabase db) {
@@ -388,12 +485,77 @@ public class Database {
 				")";
 		
 		public static final String[] SQL_CREATE_INDICES = new String[] { 
+			"CREATE INDEX IF NOT EXISTS " + TABLE_NAME + "_" + COLUMN_NAME_TYPE + " ON " + TABLE_NAME + " (" + COLUMN_NAME_TYPE + ")"
 		};
 
 		public static final String SQL_DROP_TABLE =
 			    "DROP TABLE IF EXISTS " + TABLE_NAME;	
 		
 		public static enum Type { OFF, PRESET, USER };
+		
+		// Resolves the column indices once per cursor, rows are then decoded without lookups or
+		// allocations. Columns not in the cursor's projection leave the target's value untouched.
+		public static class Reader {
+			private static final String[] BASES = new String[] { BASE_UNKNOWN, BASE_STILL, BASE_FOOT, BASE_BICYCLE, BASE_VEHICLE };
+			
+			private Cursor cursor = null;
+			
+			private int id = -1;
+			private int name = -1;
+			private int type = -1;
+			private int reduceAccuracyDelay = -1;
+			private final int[] activityInterval = new int[BASES.length];
+			private final int[] locationInterval = new int[BASES.length];
+			private final int[] accuracy = new int[BASES.length];
+			
+			public Reader() {				
+			}
+			
+			public Reader(Cursor cursor) {
+				setCursor(cursor);
+			}
+			
+			public Reader setCursor(Cursor cursor) {
+				if (cursor == this.cursor) return this;
+				this.cursor = cursor;
+				if (cursor == null) return this;
+				
+				id = cursor.getColumnIndex(_ID);
+				name = cursor.getColumnIndex(COLUMN_NAME_NAME);
+				type = cursor.getColumnIndex(COLUMN_NAME_TYPE);
+				reduceAccuracyDelay = cursor.getColumnIndex(COLUMN_NAME_REDUCE_ACCURACY_DELAY);
+				for (int i = 0; i < BASES.length; i++) {
+					activityInterval[i] = cursor.getColumnIndex(String.format(Locale.ENGLISH, BASE_INTERVAL_ACTIVITY, BASES[i]));
+					locationInterval[i] = cursor.getColumnIndex(String.format(Locale.ENGLISH, BASE_INTERVAL_LOCATION, BASES[i]));
+					accuracy[i] = cursor.getColumnIndex(String.format(Locale.ENGLISH, BASE_ACCURACY, BASES[i]));
+				}				
+				return this;
+			}
+			
+			// reads the cursor's current row
+			public Profile read(Profile into) {
+				if (into == null) into = new Profile();
+				
+				if (id >= 0) into.id = cursor.getLong(id);
+				if (name >= 0) into.name = cursor.getString(name);
+				if (type >= 0) into.type = typeFromInt(cursor.getInt(type));
+				if (reduceAccuracyDelay >= 0) into.reduceAccuracyDelay = cursor.getInt(reduceAccuracyDelay);
+				
+				read(into.unknown, 0);
+				read(into.still, 1);
+				read(into.foot, 2);
+				read(into.bicycle, 3);
+				read(into.vehicle, 4);
+				
+				return into;
+			}
+			
+			private void read(ActivitySettings into, int base) {
+				if (activityInterval[base] >= 0) into.activityInterval = cursor.getInt(activityInterval[base]);
+				if (locationInterval[base] >= 0) into.locationInterval = cursor.getInt(locationInterval[base]);
+				if (accuracy[base] >= 0) into.accuracy = accuracyFromInt(cursor.getInt(accuracy[base]));
+			}
+		}
 				
 		private static Type typeFromInt(int type) {
 			if (type == 0) return Type.OFF;
@@ -420,12 +582,6 @@ public class Database {
 			public ActivitySettings setLocationInterval(int locationInterval) { this.locationInterval = locationInterval; return this; }
 			public ActivitySettings setAccuracy(Accuracy accuracy) { this.accuracy = accuracy; return this; }
 
-			public void loadFromCursor(Cursor cursor, String base) {
-				activityInterval = cursor.getInt(cursor.getColumnIndex(String.format(Locale.ENGLISH, BASE_INTERVAL_ACTIVITY, base)));
-				locationInterval = cursor.getInt(cursor.getColumnIndex(String.format(Locale.ENGLISH, BASE_INTERVAL_LOCATION, base)));
-				accuracy = accuracyFromInt(cursor.getInt(cursor.getColumnIndex(String.format(Locale.ENGLISH, BASE_ACCURACY, base))));
-			}		
-			
 			public void saveToContentValues(ContentValues values, String base) {
 				values.put(String.format(Locale.ENGLISH, BASE_INTERVAL_ACTIVITY, base), activityInterval);
 				values.put(String.format(Locale.ENGLISH, BASE_INTERVAL_LOCATION, base), locationInterval);
@@ -470,18 +626,9 @@ public class Database {
 		public Profile setName(String name) { this.name = name; return this; }	
 		public Profile setReduceAccuracyDelay(int reduceAccuracyDelay) { this.reduceAccuracyDelay = reduceAccuracyDelay; return this; }
 
+		// for one-off reads, use a Reader when iterating
 		public void loadFromCursor(Cursor cursor) {
-			id = cursor.getLong(cursor.getColumnIndex(_ID));
-			
-			name = cursor.getString(cursor.getColumnIndex(COLUMN_NAME_NAME));
-			type = typeFromInt(cursor.getInt(cursor.getColumnIndex(COLUMN_NAME_TYPE)));
-			reduceAccuracyDelay = cursor.getInt(cursor.getColumnIndex(COLUMN_NAME_REDUCE_ACCURACY_DELAY));
-			
-			unknown.loadFromCursor(cursor, BASE_UNKNOWN);
-			still.loadFromCursor(cursor, BASE_STILL);
-			foot.loadFromCursor(cursor, BASE_FOOT);
-			bicycle.loadFromCursor(cursor, BASE_BICYCLE);
-			vehicle.loadFromCursor(cursor, BASE_VEHICLE);
+			(new Reader(cursor)).read(this);
 		}	
 		
 		public long saveToDatabase(Helper helper) {
@@ -499,10 +646,15 @@ public class Database {
 			bicycle.saveToContentValues(values, BASE_BICYCLE);
 			vehicle.saveToContentValues(values, BASE_VEHICLE);
 			
-			if (id < 0) {
-				id = db.insert(TABLE_NAME, null, values);							
-			} else {
-				db.update(TABLE_NAME, values, _ID + " = ?", new String[] { String.valueOf(id) });
+			helper.acquireLock();
+			try {
+				if (id < 0) {
+					id = db.insert(TABLE_NAME, null, values);							
+				} else {
+					db.update(TABLE_NAME, values, _ID + " = ?", new String[] { String.valueOf(id) });
+				}
+			} finally {
+				helper.releaseLock();
 			}
 			if (id >= 0) {
 				helper.notifyUri(ProfilesProvider.URILocations());
@@ -529,7 +681,12 @@ public class Database {
 		}
 		
 		public static void delete(Helper helper, long id) {
-			helper.getWritableDatabase().delete(TABLE_NAME, _ID + " = ?", new String[] { String.valueOf(id) });
+			helper.acquireLock();
+			try {
+				helper.getWritableDatabase().delete(TABLE_NAME, _ID + " = ?", new String[] { String.valueOf(id) });
+			} finally {
+				helper.releaseLock();
+			}
 			helper.notifyUri(ProfilesProvider.URILocations());
 			helper.notifyUri(ProfilesProvider.URILocation(id));
 			helper.notifyBroadcast(TABLE_NAME, id);
@@ -610,15 +767,15 @@ public class Database {
 						COLUMN_NAME_CONFIDENCE + TYPE_INTEGER + COMMA_SEP +
 						
 						COLUMN_NAME_TIME + TYPE_INTEGER + COMMA_SEP +
-						COLUMN_NAME_LATITUDE + TYPE_TEXT + COMMA_SEP +
-						COLUMN_NAME_LONGITUDE + TYPE_TEXT + COMMA_SEP +
-						COLUMN_NAME_ALTITUDE + TYPE_TEXT + COMMA_SEP +
+						COLUMN_NAME_LATITUDE + TYPE_REAL + COMMA_SEP +
+						COLUMN_NAME_LONGITUDE + TYPE_REAL + COMMA_SEP +
+						COLUMN_NAME_ALTITUDE + TYPE_REAL + COMMA_SEP +
 						COLUMN_NAME_HAS_ALTITUDE + TYPE_INTEGER + COMMA_SEP +
-						COLUMN_NAME_BEARING + TYPE_TEXT + COMMA_SEP +
+						COLUMN_NAME_BEARING + TYPE_REAL + COMMA_SEP +
 						COLUMN_NAME_HAS_BEARING + TYPE_INTEGER + COMMA_SEP +
-						COLUMN_NAME_SPEED + TYPE_TEXT + COMMA_SEP +
+						COLUMN_NAME_SPEED + TYPE_REAL + COMMA_SEP +
 						COLUMN_NAME_HAS_SPEED + TYPE_INTEGER + COMMA_SEP +
-						COLUMN_NAME_ACCURACY_DISTANCE + TYPE_TEXT + COMMA_SEP +
+						COLUMN_NAME_ACCURACY_DISTANCE + TYPE_REAL + COMMA_SEP +
 						COLUMN_NAME_HAS_ACCURACY_DISTANCE + TYPE_INTEGER + COMMA_SEP +
 						
 						COLUMN_NAME_BATTERY + TYPE_INTEGER + COMMA_SEP +
@@ -626,12 +783,191 @@ public class Database {
 						COLUMN_NAME_IS_SEGMENT_START + TYPE_INTEGER +
 				")";
 		
+		// time: export and browse ranges, also gives ORDER BY time for free
+		// log_id, time: the same, per log
+		// is_segment_start: finding track starts without scanning
 		public static final String[] SQL_CREATE_INDICES = new String[] { 
+			"CREATE INDEX IF NOT EXISTS " + TABLE_NAME + "_" + COLUMN_NAME_TIME + " ON " + TABLE_NAME + " (" + COLUMN_NAME_TIME + ")",
+			"CREATE INDEX IF NOT EXISTS " + TABLE_NAME + "_" + COLUMN_NAME_LOG_ID + "_" + COLUMN_NAME_TIME + " ON " + TABLE_NAME + " (" + COLUMN_NAME_LOG_ID + COMMA_SEP + COLUMN_NAME_TIME + ")",
+			"CREATE INDEX IF NOT EXISTS " + TABLE_NAME + "_" + COLUMN_NAME_IS_SEGMENT_START + " ON " + TABLE_NAME + " (" + COLUMN_NAME_IS_SEGMENT_START + ")"
 		};
 
 		public static final String SQL_DROP_TABLE =
 			    "DROP TABLE IF EXISTS " + TABLE_NAME;
 		
+		// columns used by the log list
+		public static final String[] PROJECTION_LIST = new String[] {
+			_ID,
+			COLUMN_NAME_ACTIVITY,
+			COLUMN_NAME_CONFIDENCE,
+			COLUMN_NAME_TIME,
+			COLUMN_NAME_LATITUDE,
+			COLUMN_NAME_LONGITUDE,
+			COLUMN_NAME_ACCURACY_DISTANCE,
+			COLUMN_NAME_BATTERY,
+			COLUMN_NAME_IS_SEGMENT_START
+		};
+		
+		// columns used by the exporter
+		public static final String[] PROJECTION_EXPORT = new String[] {
+			_ID,
+			COLUMN_NAME_ACTIVITY,
+			COLUMN_NAME_TIME,
+			COLUMN_NAME_LATITUDE,
+			COLUMN_NAME_LONGITUDE,
+			COLUMN_NAME_ACCURACY_DISTANCE,
+			COLUMN_NAME_ACCURACY_SETTING,
+			COLUMN_NAME_IS_SEGMENT_START
+		};
+		
+		public static final String[] PROJECTION_TIME = new String[] {
+			_ID,
+			COLUMN_NAME_TIME
+		};
+		
+		// Resolves the column indices once per cursor, rows are then decoded without lookups or
+		// allocations. Columns not in the cursor's projection leave the target's value untouched.
+		public static class Reader {
+			private Cursor cursor = null;
+			
+			private int id = -1;
+			private int logid = -1;
+			private int activity = -1;
+			private int confidence = -1;
+			private int time = -1;
+			private int latitude = -1;
+			private int longitude = -1;
+			private int altitude = -1;
+			private int hasAltitude = -1;
+			private int bearing = -1;
+			private int hasBearing = -1;
+			private int speed = -1;
+			private int hasSpeed = -1;
+			private int accuracyDistance = -1;
+			private int hasAccuracyDistance = -1;
+			private int battery = -1;
+			private int accuracySetting = -1;
+			private int isSegmentStart = -1;
+			
+			public Reader() {				
+			}
+			
+			public Reader(Cursor cursor) {
+				setCursor(cursor);
+			}
+			
+			public Reader setCursor(Cursor cursor) {
+				if (cursor == this.cursor) return this;
+				this.cursor = cursor;
+				if (cursor == null) return this;
+				
+				id = cursor.getColumnIndex(_ID);
+				logid = cursor.getColumnIndex(COLUMN_NAME_LOG_ID);
+				activity = cursor.getColumnIndex(COLUMN_NAME_ACTIVITY);
+				confidence = cursor.getColumnIndex(COLUMN_NAME_CONFIDENCE);
+				time = cursor.getColumnIndex(COLUMN_NAME_TIME);
+				latitude = cursor.getColumnIndex(COLUMN_NAME_LATITUDE);
+				longitude = cursor.getColumnIndex(COLUMN_NAME_LONGITUDE);
+				altitude = cursor.getColumnIndex(COLUMN_NAME_ALTITUDE);
+				hasAltitude = cursor.getColumnIndex(COLUMN_NAME_HAS_ALTITUDE);
+				bearing = cursor.getColumnIndex(COLUMN_NAME_BEARING);
+				hasBearing = cursor.getColumnIndex(COLUMN_NAME_HAS_BEARING);
+				speed = cursor.getColumnIndex(COLUMN_NAME_SPEED);
+				hasSpeed = cursor.getColumnIndex(COLUMN_NAME_HAS_SPEED);
+				accuracyDistance = cursor.getColumnIndex(COLUMN_NAME_ACCURACY_DISTANCE);
+				hasAccuracyDistance = cursor.getColumnIndex(COLUMN_NAME_HAS_ACCURACY_DISTANCE);
+				battery = cursor.getColumnIndex(COLUMN_NAME_BATTERY);
+				accuracySetting = cursor.getColumnIndex(COLUMN_NAME_ACCURACY_SETTING);
+				isSegmentStart = cursor.getColumnIndex(COLUMN_NAME_IS_SEGMENT_START);
+				return this;
+			}
+			
+			// reads the cursor's current row
+			public Location read(Location into) {
+				if (into == null) into = new Location();
+				
+				if (id >= 0) into.id = cursor.getLong(id);
+				if (logid >= 0) into.logid = cursor.getLong(logid);
+				if (activity >= 0) into.activity = activityFromInt(cursor.getInt(activity));
+				if (confidence >= 0) into.confidence = cursor.getInt(confidence);
+				if (time >= 0) into.time = cursor.getLong(time);
+				if (latitude >= 0) into.latitude = cursor.getDouble(latitude);
+				if (longitude >= 0) into.longitude = cursor.getDouble(longitude);
+				if (altitude >= 0) into.altitude = cursor.getDouble(altitude);
+				if (hasAltitude >= 0) into.hasAltitude = (cursor.getInt(hasAltitude) == 1);
+				if (bearing >= 0) into.bearing = cursor.getFloat(bearing);
+				if (hasBearing >= 0) into.hasBearing = (cursor.getInt(hasBearing) == 1);
+				if (speed >= 0) into.speed = cursor.getFloat(speed);
+				if (hasSpeed >= 0) into.hasSpeed = (cursor.getInt(hasSpeed) == 1);
+				if (accuracyDistance >= 0) into.accuracyDistance = cursor.getFloat(accuracyDistance);
+				if (hasAccuracyDistance >= 0) into.hasAccuracyDistance = (cursor.getInt(hasAccuracyDistance) == 1);
+				if (battery >= 0) into.battery = cursor.getInt(battery);
+				if (accuracySetting >= 0) into.accuracySetting = accuracyFromInt(cursor.getInt(accuracySetting));
+				if (isSegmentStart >= 0) into.isSegmentStart = (cursor.getInt(isSegmentStart) == 1);
+				
+				return into;
+			}
+		}
+		
+		// everything but _ID, in the order bound by bind()
+		private static final String COLUMNS_DATA = 
+				COLUMN_NAME_LOG_ID + COMMA_SEP + 
+				COLUMN_NAME_ACTIVITY + COMMA_SEP + 
+				COLUMN_NAME_CONFIDENCE + COMMA_SEP + 
+				COLUMN_NAME_TIME + COMMA_SEP + 
+				COLUMN_NAME_LATITUDE + COMMA_SEP + 
+				COLUMN_NAME_LONGITUDE + COMMA_SEP + 
+				COLUMN_NAME_ALTITUDE + COMMA_SEP + 
+				COLUMN_NAME_HAS_ALTITUDE + COMMA_SEP + 
+				COLUMN_NAME_BEARING + COMMA_SEP + 
+				COLUMN_NAME_HAS_BEARING + COMMA_SEP + 
+				COLUMN_NAME_SPEED + COMMA_SEP + 
+				COLUMN_NAME_HAS_SPEED + COMMA_SEP + 
+				COLUMN_NAME_ACCURACY_DISTANCE + COMMA_SEP + 
+				COLUMN_NAME_HAS_ACCURACY_DISTANCE + COMMA_SEP + 
+				COLUMN_NAME_BATTERY + COMMA_SEP + 
+				COLUMN_NAME_ACCURACY_SETTING + COMMA_SEP + 
+				COLUMN_NAME_IS_SEGMENT_START;
+		
+		private static final String COLUMNS_ALL = 
+				_ID + COMMA_SEP + 
+				COLUMNS_DATA;
+		
+		private static final String SQL_INSERT =
+				"INSERT INTO " + TABLE_NAME + " (" + COLUMNS_DATA + ") VALUES (?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?)";
+
+		private static final String SQL_UPDATE =
+				"UPDATE " + TABLE_NAME + " SET " + 
+						COLUMN_NAME_LOG_ID + " = ?" + COMMA_SEP + 
+						COLUMN_NAME_ACTIVITY + " = ?" + COMMA_SEP + 
+						COLUMN_NAME_CONFIDENCE + " = ?" + COMMA_SEP + 
+						COLUMN_NAME_TIME + " = ?" + COMMA_SEP + 
+						COLUMN_NAME_LATITUDE + " = ?" + COMMA_SEP + 
+						COLUMN_NAME_LONGITUDE + " = ?" + COMMA_SEP + 
+						COLUMN_NAME_ALTITUDE + " = ?" + COMMA_SEP + 
+						COLUMN_NAME_HAS_ALTITUDE + " = ?" + COMMA_SEP + 
+						COLUMN_NAME_BEARING + " = ?" + COMMA_SEP + 
+						COLUMN_NAME_HAS_BEARING + " = ?" + COMMA_SEP + 
+						COLUMN_NAME_SPEED + " = ?" + COMMA_SEP + 
+						COLUMN_NAME_HAS_SPEED + " = ?" + COMMA_SEP + 
+						COLUMN_NAME_ACCURACY_DISTANCE + " = ?" + COMMA_SEP + 
+						COLUMN_NAME_HAS_ACCURACY_DISTANCE + " = ?" + COMMA_SEP + 
+						COLUMN_NAME_BATTERY + " = ?" + COMMA_SEP + 
+						COLUMN_NAME_ACCURACY_SETTING + " = ?" + COMMA_SEP + 
+						COLUMN_NAME_IS_SEGMENT_START + " = ?" +
+				" WHERE " + _ID + " = ?";
+		private static final int SQL_UPDATE_ID_INDEX = 18;
+		
+		// v1 stored the floating point columns as TEXT. Rebuild the table with REAL columns, the
+		// REAL column affinity makes SQLite convert the numeric text while copying, so no row 
+		// has to pass through Java
+		public static final String[] SQL_UPGRADE_V2 = new String[] {
+			"ALTER TABLE " + TABLE_NAME + " RENAME TO " + TABLE_NAME + "_v1",
+			SQL_CREATE_TABLE,
+			"INSERT INTO " + TABLE_NAME + " (" + COLUMNS_ALL + ") SELECT " + COLUMNS_ALL + " FROM " + TABLE_NAME + "_v1",
+			"DROP TABLE " + TABLE_NAME + "_v1"
+		};
+		
 		private long id = -1;
 		private long logid = 0;
 		private Activity activity = Activity.UNKNOWN;
@@ -689,26 +1025,9 @@ public class Database {
 		public Location setAccuracySetting(Accuracy accuracySetting) { this.accuracySetting = accuracySetting; return this; }
 		public Location isSegmentStart(boolean isSegmentStart) { this.isSegmentStart = isSegmentStart; return this; }
 
+		// for one-off reads, use a Reader when iterating
 		public void loadFromCursor(Cursor cursor) {
-			id = cursor.getLong(cursor.getColumnIndex(_ID));
-			logid = cursor.getLong(cursor.getColumnIndex(COLUMN_NAME_LOG_ID));
-			
-			activity = activityFromInt(cursor.getInt(cursor.getColumnIndex(COLUMN_NAME_ACTIVITY)));
-			confidence = cursor.getInt(cursor.getColumnIndex(COLUMN_NAME_CONFIDENCE));
-			time = cursor.getLong(cursor.getColumnIndex(COLUMN_NAME_TIME));
-			latitude = Double.valueOf(cursor.getString(cursor.getColumnIndex(COLUMN_NAME_LATITUDE)));
-			longitude = Double.valueOf(cursor.getString(cursor.getColumnIndex(COLUMN_NAME_LONGITUDE)));
-			altitude = Double.valueOf(cursor.getString(cursor.getColumnIndex(COLUMN_NAME_ALTITUDE)));
-			hasAltitude = (cursor.getInt(cursor.getColumnIndex(COLUMN_NAME_HAS_ALTITUDE)) == 1);
-			bearing = Float.valueOf(cursor.getString(cursor.getColumnIndex(COLUMN_NAME_BEARING)));
-			hasBearing = (cursor.getInt(cursor.getColumnIndex(COLUMN_NAME_HAS_BEARING)) == 1);
-			speed = Float.valueOf(cursor.getString(cursor.getColumnIndex(COLUMN_NAME_SPEED)));
-			hasSpeed = (cursor.getInt(cursor.getColumnIndex(COLUMN_NAME_HAS_SPEED)) == 1);
-			accuracyDistance = Float.valueOf(cursor.getString(cursor.getColumnIndex(COLUMN_NAME_ACCURACY_DISTANCE)));
-			hasAccuracyDistance = (cursor.getInt(cursor.getColumnIndex(COLUMN_NAME_HAS_ACCURACY_DISTANCE)) == 1);
-			battery = cursor.getInt(cursor.getColumnIndex(COLUMN_NAME_BATTERY));
-			accuracySetting = accuracyFromInt(cursor.getInt(cursor.getColumnIndex(COLUMN_NAME_ACCURACY_SETTING)));
-			isSegmentStart = (cursor.getInt(cursor.getColumnIndex(COLUMN_NAME_IS_SEGMENT_START)) == 1);
+			(new Reader(cursor)).read(this);
 		}	
 		
 		public void loadFromDetectedActivity(DetectedActivity detectedActivity) {
@@ -731,34 +1050,47 @@ public class Database {
 		}
 		
 		public long saveToDatabase(Helper helper) {
-			SQLiteDatabase db = helper.getWritableDatabase();
-			
-			ContentValues values = new ContentValues();
-			
-			values.put(COLUMN_NAME_LOG_ID, logid);
-			values.put(COLUMN_NAME_ACTIVITY, activityToInt(activity));			
-			values.put(COLUMN_NAME_CONFIDENCE, confidence);
-			values.put(COLUMN_NAME_TIME, time);
-			values.put(COLUMN_NAME_LATITUDE, String.valueOf(latitude));
-			values.put(COLUMN_NAME_LONGITUDE, String.valueOf(longitude));
-			values.put(COLUMN_NAME_ALTITUDE, String.valueOf(altitude));
-			values.put(COLUMN_NAME_HAS_ALTITUDE, hasAltitude ? 1 : 0);
-			values.put(COLUMN_NAME_BEARING, String.valueOf(bearing));
-			values.put(COLUMN_NAME_HAS_BEARING, hasBearing ? 1 : 0);
-			values.put(COLUMN_NAME_SPEED, String.valueOf(speed));
-			values.put(COLUMN_NAME_HAS_SPEED, hasSpeed ? 1 : 0);
-			values.put(COLUMN_NAME_ACCURACY_DISTANCE, String.valueOf(accuracyDistance));
-			values.put(COLUMN_NAME_HAS_ACCURACY_DISTANCE, hasAccuracyDistance ? 1 : 0);	
-			values.put(COLUMN_NAME_BATTERY, battery);
-			values.put(COLUMN_NAME_ACCURACY_SETTING, accuracyToInt(accuracySetting));
-			values.put(COLUMN_NAME_IS_SEGMENT_START, isSegmentStart ? 1 : 0);
-			
-			if (id < 0) {
-				id = db.insert(TABLE_NAME, null, values);							
-			} else {
-				db.update(TABLE_NAME, values, _ID + " = ?", new String[] { String.valueOf(id) });
+			return saveToDatabase(helper, true);
+		}
+		
+		// binds all columns in COLUMNS_DATA order, primitives only
+		private void bind(SQLiteStatement statement) {
+			statement.bindLong(1, logid);
+			statement.bindLong(2, activityToInt(activity));
+			statement.bindLong(3, confidence);
+			statement.bindLong(4, time);
+			statement.bindDouble(5, latitude);
+			statement.bindDouble(6, longitude);
+			statement.bindDouble(7, altitude);
+			statement.bindLong(8, hasAltitude ? 1 : 0);
+			statement.bindDouble(9, bearing);
+			statement.bindLong(10, hasBearing ? 1 : 0);
+			statement.bindDouble(11, speed);
+			statement.bindLong(12, hasSpeed ? 1 : 0);
+			statement.bindDouble(13, accuracyDistance);
+			statement.bindLong(14, hasAccuracyDistance ? 1 : 0);
+			statement.bindLong(15, battery);
+			statement.bindLong(16, accuracyToInt(accuracySetting));
+			statement.bindLong(17, isSegmentStart ? 1 : 0);
+		}
+		
+		public long saveToDatabase(Helper helper, boolean notify) {
+			helper.acquireLock();
+			try {
+				if (id < 0) {
+					SQLiteStatement insert = helper.getLocationInsert();
+					bind(insert);
+					id = insert.executeInsert();
+				} else {
+					SQLiteStatement update = helper.getLocationUpdate();
+					bind(update);
+					update.bindLong(SQL_UPDATE_ID_INDEX, id);
+					update.executeUpdateDelete();
+				}
+			} finally {
+				helper.releaseLock();
 			}
-			if (id >= 0) {
+			if (notify && (id >= 0)) {
 				helper.notifyUri(LogsProvider.URILocations());
 				helper.notifyUri(LogsProvider.URILocation(id));
 				helper.notifyBroadcast(TABLE_NAME, id);
@@ -783,38 +1115,54 @@ public class Database {
 		}
 		
 		public static void delete(Helper helper, long id) {
-			helper.getWritableDatabase().delete(TABLE_NAME, _ID + " = ?", new String[] { String.valueOf(id) });
+			helper.acquireLock();
+			try {
+				helper.getWritableDatabase().delete(TABLE_NAME, _ID + " = ?", new String[] { String.valueOf(id) });
+			} finally {
+				helper.releaseLock();
+			}
 			helper.notifyUri(LogsProvider.URILocations());
 			helper.notifyUri(LogsProvider.URILocation(id));
 			helper.notifyBroadcast(TABLE_NAME, id);
 		}
 		
 		public static void deleteAll(Helper helper) {
-			helper.getWritableDatabase().delete(TABLE_NAME, null, null);
+			helper.acquireLock();
+			try {
+				helper.getWritableDatabase().delete(TABLE_NAME, null, null);
+			} finally {
+				helper.releaseLock();
+			}
 			helper.notifyUri(LogsProvider.URILocations());
 			helper.notifyUri(LogsProvider.URILocation(0));
 			helper.notifyBroadcast(TABLE_NAME, 0);
 		}
 
+		public Location copyFrom(Location location) {
+			// copies the data, not the identity: saving the result always inserts a new row
+			id = -1;
+			logid = location.getLogId();
+			activity = location.getActivity();
+			confidence = location.getConfidence();
+			time = location.getTime();
+			latitude = location.getLatitude();
+			longitude = location.getLongitude();
+			altitude = location.getAltitude();
+			hasAltitude = location.hasAltitude();
+			bearing = location.getBearing();
+			hasBearing = location.hasBearing();
+			speed = location.getSpeed();
+			hasSpeed = location.hasSpeed();
+			accuracyDistance = location.getAccuracyDistance();
+			hasAccuracyDistance = location.hasAccuracyDistance();
+			battery = location.getBattery();
+			accuracySetting = location.getAccuracySetting();
+			isSegmentStart = location.isSegmentStart();
+			return this;
+		}
+		
 		public static Location copy(Helper helper, Location location) {
-			Location ret = new Location();
-			ret.setLogId(location.getLogId());
-			ret.setActivity(location.getActivity());
-			ret.setConfidence(location.getConfidence());
-			ret.setTime(location.getTime());
-			ret.setLatitude(location.getLatitude());
-			ret.setLongitude(location.getLongitude());
-			ret.setAltitude(location.getAltitude());
-			ret.hasAltitude(location.hasAltitude());
-			ret.setBearing(location.getBearing());
-			ret.hasBearing(location.hasBearing());
-			ret.setSpeed(location.getSpeed());
-			ret.hasSpeed(location.hasSpeed());
-			ret.setAccuracyDistance(location.getAccuracyDistance());
-			ret.hasAccuracyDistance(location.hasAccuracyDistance());
-			ret.setBattery(location.getBattery());
-			ret.setAccuracySetting(location.getAccuracySetting());
-			ret.isSegmentStart(location.isSegmentStart());
+			Location ret = (new Location()).copyFrom(location);
 			ret.saveToDatabase(helper);
 			return ret;
 		}
@@ -822,5 +1170,269 @@ public class Database {
 		public static Cursor list(Helper helper) {
 			return helper.getReadableDatabase().query(TABLE_NAME, null, null, null, null, null, _ID);			
 		}		
+		
+		// Keyset paging, newest first: up to limit rows with _ID < beforeId, or the newest rows if 
+		// beforeId < 0. Served by the primary key, cost doesn't depend on how deep the page is
+		public static Cursor listPage(Helper helper, String[] projection, long beforeId, int limit) {
+			return helper.getReadableDatabase().query(
+					TABLE_NAME, 
+					projection, 
+					(beforeId >= 0) ? _ID + " < ?" : null, 
+					(beforeId >= 0) ? new String[] { String.valueOf(beforeId) } : null,
+					null, 
+					null, 
+					_ID + " DESC",
+					String.valueOf(limit)
+			);
+		}
+		
+		// Change feed: rows inserted after afterId, newest first, at most limit rows
+		public static Cursor listSince(Helper helper, String[] projection, long afterId, int limit) {
+			return helper.getReadableDatabase().query(
+					TABLE_NAME, 
+					projection, 
+					_ID + " > ?", 
+					new String[] { String.valueOf(afterId) },
+					null, 
+					null, 
+					_ID + " DESC",
+					String.valueOf(limit)
+			);
+		}
+		
+		// Rows with minId <= _ID <= maxId, newest first
+		public static Cursor listIdRange(Helper helper, String[] projection, long minId, long maxId) {
+			return helper.getReadableDatabase().query(
+					TABLE_NAME, 
+					projection, 
+					_ID + " >= ? AND " + _ID + " <= ?", 
+					new String[] { String.valueOf(minId), String.valueOf(maxId) },
+					null, 
+					null, 
+					_ID + " DESC"
+			);
+		}
+		
+		// Extra columns returned by listForExport
+		public static final String COLUMN_OK = "ok";
+		public static final String COLUMN_PREV_TIME = "prev_time";
+		public static final String COLUMN_LAST_TIME = "last_time";
+		
+		// (time, _ID) >= (timeStart, idStart) and time <= timeEnd, prefix is the table alias
+		private static String exportRange(String prefix, long timeStart, long idStart, long timeEnd) {
+			String time = prefix + COLUMN_NAME_TIME;
+			String range = "1";
+			if (timeStart >= 0) {
+				if (idStart >= 0) {
+					range += " AND ((" + time + " > " + String.valueOf(timeStart) + ") OR (" + time + " = " + String.valueOf(timeStart) + " AND " + prefix + _ID + " >= " + String.valueOf(idStart) + "))";
+				} else {
+					range += " AND " + time + " >= " + String.valueOf(timeStart);
+				}
+			}
+			if (timeEnd >= 0) range += " AND " + time + " <= " + String.valueOf(timeEnd);
+			return range;
+		}
+		
+		public static Cursor listForExport(Helper helper, String[] projection, long timeStart, long timeEnd, String okExpression) {
+			return listForExport(helper, projection, timeStart, -1, timeEnd, okExpression);
+		}
+		
+		// Export query with the accuracy filter evaluated by SQLite. okExpression (over this 
+		// table's columns) is returned as COLUMN_OK, rows failing it are only returned if they are
+		// a segment start (the flag carries over to the next exported point) or the first row of 
+		// the range (it starts the first track). COLUMN_PREV_TIME is the time of the row preceding
+		// each row in the full range (NULL for the first), COLUMN_LAST_TIME the time of the last
+		// row in the range, so time-based decisions are not affected by the rows left out.
+		// Ordered by time, _ID, like list(helper, projection, timeStart, timeEnd). If idStart >= 0,
+		// rows at timeStart are only included from that _ID on, to continue exactly at a row.
+		public static Cursor listForExport(Helper helper, String[] projection, long timeStart, long idStart, long timeEnd, String okExpression) {
+			String columns = "";
+			for (String column : projection) {
+				columns += column + COMMA_SEP;
+			}
+			
+			String sql = 
+					"SELECT " + columns + 
+						"(" + okExpression + ") AS " + COLUMN_OK + COMMA_SEP +
+						"CASE WHEN EXISTS (" +
+							"SELECT 1 FROM " + TABLE_NAME + " p WHERE p." + COLUMN_NAME_TIME + " = " + TABLE_NAME + "." + COLUMN_NAME_TIME + " AND p." + _ID + " < " + TABLE_NAME + "." + _ID + " AND " + exportRange("p.", timeStart, idStart, timeEnd) + 
+						") THEN " + TABLE_NAME + "." + COLUMN_NAME_TIME + " ELSE (" +
+							"SELECT MAX(p." + COLUMN_NAME_TIME + ") FROM " + TABLE_NAME + " p WHERE p." + COLUMN_NAME_TIME + " < " + TABLE_NAME + "." + COLUMN_NAME_TIME + " AND " + exportRange("p.", timeStart, idStart, timeEnd) + 
+						") END AS " + COLUMN_PREV_TIME + COMMA_SEP +
+						"(SELECT MAX(p." + COLUMN_NAME_TIME + ") FROM " + TABLE_NAME + " p WHERE " + exportRange("p.", timeStart, idStart, timeEnd) + ") AS " + COLUMN_LAST_TIME + " " +
+					"FROM " + TABLE_NAME + " " +
+					"WHERE " + exportRange("", timeStart, idStart, timeEnd) + " AND (" +
+						"(" + okExpression + ") OR " + 
+						"(" + COLUMN_NAME_IS_SEGMENT_START + " = 1) OR " +
+						"(" + _ID + " = (SELECT p." + _ID + " FROM " + TABLE_NAME + " p WHERE " + exportRange("p.", timeStart, idStart, timeEnd) + " ORDER BY p." + COLUMN_NAME_TIME + COMMA_SEP + "p." + _ID + " LIMIT 1))" + 
+					") " +
+					"ORDER BY " + COLUMN_NAME_TIME + COMMA_SEP + _ID;
+			
+			return helper.getReadableDatabase().rawQuery(sql, null);
+		}
+		
+		// Rows with timeStart <= time <= timeEnd (either bound < 0 to disable it), oldest first.
+		// Served by the time index, _ID breaks ties so the order is stable for equal times.
+		public static Cursor list(Helper helper, String[] projection, long timeStart, long timeEnd) {
+			ArrayList<String> conditions = new ArrayList<String>();
+			ArrayList<String> parameters = new ArrayList<String>();
+
+			if (timeStart >= 0) {
+				conditions.add(COLUMN_NAME_TIME + " >= ?");
+				parameters.add(String.valueOf(timeStart));
+			}
+			
+			if (timeEnd >= 0) {
+				conditions.add(COLUMN_NAME_TIME + " <= ?");
+				parameters.add(String.valueOf(timeEnd));
+			}
+			
+			String selection = null;
+			for (int i = 0; i < conditions.size(); i++) {
+				if (selection == null) selection = ""; 
+				selection += conditions.get(i);
+				if (i < conditions.size() - 1) selection += " AND ";
+			}
+			
+			return helper.getReadableDatabase().query(
+					TABLE_NAME, 
+					projection, 
+					selection, 
+					parameters.toArray(new String[parameters.size()]),
+					null, 
+					null, 
+					COLUMN_NAME_TIME + COMMA_SEP + _ID
+			);
+		}
+	}
+	
+	// Request timeline: a row each time the location or activity requests in effect change, or
+	// the profile or activity they are for. Each row holds until the next one, accuracy NONE with
+	// both intervals 0 means nothing is requested. Used to estimate energy use, see EnergyEstimator.
+	public static class Request implements BaseColumns {
+		public static final String TABLE_NAME = "requests";
+		
+		public static final String COLUMN_NAME_TIME = "time";
+		public static final String COLUMN_NAME_PROFILE_ID = "profile_id";
+		public static final String COLUMN_NAME_ACTIVITY = "activity";
+		public static final String COLUMN_NAME_LOCATION_ACCURACY = "location_accuracy";
+		public static final String COLUMN_NAME_LOCATION_INTERVAL = "location_interval";
+		public static final String COLUMN_NAME_ACTIVITY_INTERVAL = "activity_interval";
+		
+		public static final String SQL_CREATE_TABLE =
+				"CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " (" +
+						_ID + " INTEGER PRIMARY KEY AUTOINCREMENT" + COMMA_SEP +
+						
+						COLUMN_NAME_TIME + TYPE_INTEGER + COMMA_SEP +
+						COLUMN_NAME_PROFILE_ID + TYPE_INTEGER + COMMA_SEP +
+						COLUMN_NAME_ACTIVITY + TYPE_INTEGER + COMMA_SEP +
+						COLUMN_NAME_LOCATION_ACCURACY + TYPE_INTEGER + COMMA_SEP +
+						COLUMN_NAME_LOCATION_INTERVAL + TYPE_INTEGER + COMMA_SEP +
+						COLUMN_NAME_ACTIVITY_INTERVAL + TYPE_INTEGER +
+				")";
+		
+		// time: ranges and pruning
+		public static final String[] SQL_CREATE_INDICES = new String[] { 
+			"CREATE INDEX IF NOT EXISTS " + TABLE_NAME + "_" + COLUMN_NAME_TIME + " ON " + TABLE_NAME + " (" + COLUMN_NAME_TIME + ")"
+		};
+		
+		public static final String SQL_DROP_TABLE =
+			    "DROP TABLE IF EXISTS " + TABLE_NAME;
+		
+		private long id = -1;
+		private long time = 0;
+		private long profileId = 0;
+		private Activity activity = Activity.UNKNOWN;
+		private Accuracy locationAccuracy = Accuracy.NONE;
+		private int locationInterval = 0;
+		private int activityInterval = 0;
+		
+		public long getId() { return id; }
+		
+		public long getTime() { return time; }
+		public long getProfileId() { return profileId; }
+		public Activity getActivity() { return activity; }
+		public Accuracy getLocationAccuracy() { return locationAccuracy; }
+		public int getLocationInterval() { return locationInterval; }
+		public int getActivityInterval() { return activityInterval; }
+		
+		public Request setTime(long time) { this.time = time; return this; }
+		public Request setProfileId(long profileId) { this.profileId = profileId; return this; }
+		public Request setActivity(Activity activity) { this.activity = activity; return this; }
+		public Request setLocationAccuracy(Accuracy locationAccuracy) { this.locationAccuracy = locationAccuracy; return this; }
+		public Request setLocationInterval(int locationInterval) { this.locationInterval = locationInterval; return this; }
+		public Request setActivityInterval(int activityInterval) { this.activityInterval = activityInterval; return this; }
+		
+		public void loadFromCursor(Cursor cursor) {
+			id = cursor.getLong(cursor.getColumnIndex(_ID));
+			time = cursor.getLong(cursor.getColumnIndex(COLUMN_NAME_TIME));
+			profileId = cursor.getLong(cursor.getColumnIndex(COLUMN_NAME_PROFILE_ID));
+			activity = activityFromInt(cursor.getInt(cursor.getColumnIndex(COLUMN_NAME_ACTIVITY)));
+			locationAccuracy = accuracyFromInt(cursor.getInt(cursor.getColumnIndex(COLUMN_NAME_LOCATION_ACCURACY)));
+			locationInterval = cursor.getInt(cursor.getColumnIndex(COLUMN_NAME_LOCATION_INTERVAL));
+			activityInterval = cursor.getInt(cursor.getColumnIndex(COLUMN_NAME_ACTIVITY_INTERVAL));
+		}
+		
+		// nothing observes this table, no notifications
+		public long saveToDatabase(Helper helper) {
+			ContentValues values = new ContentValues();
+			
+			values.put(COLUMN_NAME_TIME, time);
+			values.put(COLUMN_NAME_PROFILE_ID, profileId);
+			values.put(COLUMN_NAME_ACTIVITY, activityToInt(activity));
+			values.put(COLUMN_NAME_LOCATION_ACCURACY, accuracyToInt(locationAccuracy));
+			values.put(COLUMN_NAME_LOCATION_INTERVAL, locationInterval);
+			values.put(COLUMN_NAME_ACTIVITY_INTERVAL, activityInterval);
+			
+			helper.acquireLock();
+			try {
+				SQLiteDatabase db = helper.getWritableDatabase();
+				if (id < 0) {
+					id = db.insert(TABLE_NAME, null, values);							
+				} else {
+					db.update(TABLE_NAME, values, _ID + " = ?", new String[] { String.valueOf(id) });
+				}
+			} finally {
+				helper.releaseLock();
+			}
+			return id;
+		}
+		
+		// Rows with timeStart <= time <= timeEnd (either bound < 0 to disable it), oldest first.
+		// The row in effect at timeStart, if any, is included as well.
+		public static ArrayList<Request> list(Helper helper, long timeStart, long timeEnd) {
+			String selection = "1";
+			if (timeStart >= 0) selection += " AND " + COLUMN_NAME_TIME + " >= (SELECT IFNULL(MAX(" + COLUMN_NAME_TIME + "), 0) FROM " + TABLE_NAME + " WHERE " + COLUMN_NAME_TIME + " <= " + String.valueOf(timeStart) + ")";
+			if (timeEnd >= 0) selection += " AND " + COLUMN_NAME_TIME + " <= " + String.valueOf(timeEnd);
+			
+			ArrayList<Request> ret = new ArrayList<Request>();
+			Cursor cursor = helper.getReadableDatabase().query(TABLE_NAME, null, selection, null, null, null, COLUMN_NAME_TIME + COMMA_SEP + _ID);
+			if (cursor != null) {
+				try {
+					while (cursor.moveToNext()) {
+						Request request = new Request();
+						request.loadFromCursor(cursor);
+						ret.add(request);
+					}
+				} finally {
+					cursor.close();
+				}
+			}
+			return ret;
+		}
+		
+		// Removes rows older than time, except the one still in effect at time
+		public static int deleteBefore(Helper helper, long time) {
+			helper.acquireLock();
+			try {
+				return helper.getWritableDatabase().delete(
+						TABLE_NAME, 
+						COLUMN_NAME_TIME + " < (SELECT IFNULL(MAX(" + COLUMN_NAME_TIME + "), 0) FROM " + TABLE_NAME + " WHERE " + COLUMN_NAME_TIME + " <= ?)", 
+						new String[] { String.valueOf(time) }
+				);
+			} finally {
+				helper.releaseLock();
+			}
+		}
 	}
 }
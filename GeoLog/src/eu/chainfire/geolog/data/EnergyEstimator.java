@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2013 Jorrit "Chainfire" Jongma
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.chainfire.geolog.data;
+
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+import eu.chainfire.geolog.data.Database.Accuracy;
+import eu.chainfire.geolog.data.Database.Activity;
+
+// Estimates the energy used by the location and activity requests in a Request timeline, in
+// mAh, totalled per profile, per activity and per day. Each row holds until the next one. Per
+// fix cost is capped at what the hardware draws when it stays on, as a GPS asked for a fix every
+// second doesn't power down in between. The defaults are rough figures for current hardware,
+// meant for comparing profiles with each other rather than predicting battery percentages.
+public class EnergyEstimator {
+	public static final double DEFAULT_HIGH_FIX_MAH = 0.25;
+	public static final double DEFAULT_HIGH_MAX_MA = 60.0;
+	public static final double DEFAULT_LOW_FIX_MAH = 0.02;
+	public static final double DEFAULT_LOW_MAX_MA = 20.0;
+	public static final double DEFAULT_ACTIVITY_RESULT_MAH = 0.01;
+	public static final double DEFAULT_ACTIVITY_MAX_MA = 5.0;
+
+	private static final double MS_PER_HOUR = 60.0 * 60.0 * 1000.0;
+
+	private double highFix = DEFAULT_HIGH_FIX_MAH;
+	private double highMax = DEFAULT_HIGH_MAX_MA;
+	private double lowFix = DEFAULT_LOW_FIX_MAH;
+	private double lowMax = DEFAULT_LOW_MAX_MA;
+	private double activityResult = DEFAULT_ACTIVITY_RESULT_MAH;
+	private double activityMax = DEFAULT_ACTIVITY_MAX_MA;
+
+	private final Calendar calendar;
+
+	private double location = 0;
+	private double activity = 0;
+	private long duration = 0;
+	private final Map<Long, Double> perProfile = new HashMap<Long, Double>();
+	private final double[] perActivity = new double[Activity.values().length];
+	private final TreeMap<Long, Double> perDay = new TreeMap<Long, Double>();
+
+	public EnergyEstimator(TimeZone timeZone) {
+		calendar = Calendar.getInstance(timeZone);
+	}
+
+	// mAh per fix and the mA ceiling for an accuracy
+	public EnergyEstimator setLocationCost(Accuracy accuracy, double fix, double max) {
+		if (accuracy == Accuracy.HIGH) {
+			highFix = fix;
+			highMax = max;
+		} else if (accuracy == Accuracy.LOW) {
+			lowFix = fix;
+			lowMax = max;
+		}
+		return this;
+	}
+
+	// mAh per activity result and the mA ceiling
+	public EnergyEstimator setActivityCost(double result, double max) {
+		activityResult = result;
+		activityMax = max;
+		return this;
+	}
+
+	// mA drawn by the given requests, interval in seconds
+	public double getLocationCurrent(Accuracy accuracy, int interval) {
+		if (interval <= 0) return 0;
+		if (accuracy == Accuracy.HIGH) return current(highFix, highMax, interval);
+		if (accuracy == Accuracy.LOW) return current(lowFix, lowMax, interval);
+		return 0;
+	}
+
+	public double getActivityCurrent(int interval) {
+		if (interval <= 0) return 0;
+		return current(activityResult, activityMax, interval);
+	}
+
+	private static double current(double fix, double max, int interval) {
+		return Math.min(max, fix * 3600.0 / interval);
+	}
+
+	// Adds a timeline, oldest first. The last row holds until timeEnd, rows before timeStart
+	// only count from there.
+	public EnergyEstimator add(List<Database.Request> requests, long timeStart, long timeEnd) {
+		for (int i = 0; i < requests.size(); i++) {
+			Database.Request request = requests.get(i);
+			long start = Math.max(timeStart, request.getTime());
+			long end = (i < requests.size() - 1) ? Math.min(timeEnd, requests.get(i + 1).getTime()) : timeEnd;
+			add(request, start, end);
+		}
+		return this;
+	}
+
+	// Adds a single request held from start to end
+	public EnergyEstimator add(Database.Request request, long start, long end) {
+		if (end <= start) return this;
+
+		double locationCurrent = getLocationCurrent(request.getLocationAccuracy(), request.getLocationInterval());
+		double activityCurrent = getActivityCurrent(request.getActivityInterval());
+		double hours = (end - start) / MS_PER_HOUR;
+
+		location += locationCurrent * hours;
+		activity += activityCurrent * hours;
+		duration += end - start;
+		increment(perProfile, request.getProfileId(), (locationCurrent + activityCurrent) * hours);
+		perActivity[request.getActivity().ordinal()] += (locationCurrent + activityCurrent) * hours;
+
+		// split at midnight
+		while (start < end) {
+			long day = dayStart(start);
+			calendar.add(Calendar.DAY_OF_MONTH, 1);
+			long split = Math.min(end, calendar.getTimeInMillis());
+			increment(perDay, day, (locationCurrent + activityCurrent) * ((split - start) / MS_PER_HOUR));
+			start = split;
+		}
+		return this;
+	}
+
+	// leaves calendar at the start of the day
+	private long dayStart(long time) {
+		calendar.setTimeInMillis(time);
+		calendar.set(Calendar.HOUR_OF_DAY, 0);
+		calendar.set(Calendar.MINUTE, 0);
+		calendar.set(Calendar.SECOND, 0);
+		calendar.set(Calendar.MILLISECOND, 0);
+		return calendar.getTimeInMillis();
+	}
+
+	private static void increment(Map<Long, Double> map, long key, double value) {
+		Double current = map.get(key);
+		map.put(key, (current != null) ? current + value : value);
+	}
+
+	public double getTotal() { return location + activity; }
+	public double getLocation() { return location; }
+	public double getActivity() { return activity; }
+
+	// time covered, in ms
+	public long getDuration() { return duration; }
+
+	// average mA over the time covered
+	public double getAverageCurrent() {
+		if (duration == 0) return 0;
+		return getTotal() / (duration / MS_PER_HOUR);
+	}
+
+	public double getProfile(long profileId) {
+		Double ret = perProfile.get(profileId);
+		return (ret != null) ? ret : 0;
+	}
+
+	public Map<Long, Double> getPerProfile() { return perProfile; }
+
+	public double getActivity(Activity activity) {
+		return perActivity[activity.ordinal()];
+	}
+
+	// by the local midnight starting the day
+	public TreeMap<Long, Double> getPerDay() { return perDay; }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2013 Jorrit "Chainfire" Jongma
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.chainfire.geolog.data;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+// Buffered ASCII output for the exporters. Numbers and timestamps are encoded straight into
+// the reused buffer, so after construction writing doesn't allocate, and the stream only sees
+// buffer-sized writes.
+// Output written after mark() is held back (the buffer grows as needed) until it is either
+// released with commit() or dropped with discard(), so nothing written to the stream ever
+// has to be taken back, and the stream doesn't need to be seekable.
+public class ExportOutput {
+	public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+	private static final long[] POW10 = new long[] {
+		1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L, 1000000000L
+	};
+
+	private static final long MS_PER_DAY = 24L * 60L * 60L * 1000L;
+
+	private final OutputStream os;
+	private byte[] buffer;
+	private int length = 0;
+	private int mark = -1;
+
+	private final byte[] digits = new byte[20];
+
+	// "yyyy-MM-ddT" of the day last encoded by writeTime(), consecutive points are nearly
+	// always on the same day
+	private final byte[] datePrefix = new byte[11];
+	private long dateDay = Long.MIN_VALUE;
+
+	public ExportOutput(OutputStream os) {
+		this(os, DEFAULT_BUFFER_SIZE);
+	}
+
+	public ExportOutput(OutputStream os, int bufferSize) {
+		this.os = os;
+		this.buffer = new byte[bufferSize];
+	}
+
+	// value scaled by 10^decimals and rounded half up on its decimal representation, like
+	// String.format does. Two values print the same if and only if this returns the same.
+	public static long toFixed(double value, int decimals) {
+		if (value < 0) return -toFixedPositive(-value, decimals);
+		return toFixedPositive(value, decimals);
+	}
+
+	private static long toFixedPositive(double value, int decimals) {
+		double scaled = value * POW10[decimals];
+		double fraction = scaled - Math.floor(scaled);
+		if (Math.abs(fraction - 0.5) < 0.000001) {
+			// too close to call in binary, the product may have rounded across the half.
+			// Rare enough with real coordinates that the allocation doesn't matter.
+			return (new BigDecimal(Double.toString(value))).setScale(decimals, RoundingMode.HALF_UP).unscaledValue().longValue();
+		}
+		return Math.round(scaled);
+	}
+
+	private void flushBuffer() throws IOException {
+		if (mark >= 0) {
+			// release what's before the mark, then make room for the held bytes
+			if (mark > 0) {
+				os.write(buffer, 0, mark);
+				System.arraycopy(buffer, mark, buffer, 0, length - mark);
+				length -= mark;
+				mark = 0;
+			}
+			if (length == buffer.length) {
+				byte[] grown = new byte[buffer.length * 2];
+				System.arraycopy(buffer, 0, grown, 0, length);
+				buffer = grown;
+			}
+		} else if (length > 0) {
+			os.write(buffer, 0, length);
+			length = 0;
+		}
+	}
+	
+	// hold back everything written from here on, a previous mark is committed
+	public void mark() {
+		mark = length;
+	}
+	
+	// release the held output
+	public void commit() {
+		mark = -1;
+	}
+	
+	// drop everything written since mark()
+	public void discard() {
+		if (mark >= 0) {
+			length = mark;
+			mark = -1;
+		}
+	}
+	
+	public boolean isHolding() {
+		return (mark >= 0);
+	}
+	
+	// bytes currently held back
+	public int getHeldSize() {
+		return (mark >= 0) ? length - mark : 0;
+	}
+
+	public ExportOutput write(int b) throws IOException {
+		if (length == buffer.length) flushBuffer();
+		buffer[length++] = (byte)b;
+		return this;
+	}
+
+	// ASCII only
+	public ExportOutput write(String s) throws IOException {
+		int len = s.length();
+		for (int i = 0; i < len; i++) {
+			if (length == buffer.length) flushBuffer();
+			buffer[length++] = (byte)s.charAt(i);
+		}
+		return this;
+	}
+
+	public ExportOutput writeLong(long value) throws IOException {
+		if (value < 0) {
+			write('-');
+			if (value == Long.MIN_VALUE) return write("9223372036854775808");
+			value = -value;
+		}
+		int n = 0;
+		do {
+			digits[n++] = (byte)('0' + (value % 10));
+			value /= 10;
+		} while (value > 0);
+		while (n > 0) write(digits[--n]);
+		return this;
+	}
+
+	private ExportOutput writePadded(long value, int width) throws IOException {
+		for (int i = width - 1; i >= 0; i--) {
+			write('0' + (int)((value / POW10[i]) % 10));
+		}
+		return this;
+	}
+
+	// Same output as String.format("%.<decimals>f") for the coordinate ranges we deal with,
+	// decimals 0..9
+	public ExportOutput writeFixed(double value, int decimals) throws IOException {
+		if (value < 0) {
+			write('-');
+			value = -value;
+		}
+		long fixed = toFixedPositive(value, decimals);
+		writeLong(fixed / POW10[decimals]);
+		if (decimals > 0) {
+			write('.');
+			writePadded(fixed % POW10[decimals], decimals);
+		}
+		return this;
+	}
+
+	// ISO 8601 UTC, "yyyy-MM-ddTHH:mm:ssZ"
+	public ExportOutput writeTime(long millis) throws IOException {
+		long day = millis / MS_PER_DAY;
+		if (millis < 0 && (millis % MS_PER_DAY) != 0) day--;
+
+		if (day != dateDay) {
+			// days since epoch to civil date, see http://howardhinnant.github.io/date_algorithms.html
+			long z = day + 719468;
+			long era = (z >= 0 ? z : z - 146096) / 146097;
+			long doe = z - era * 146097;
+			long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+			long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+			long mp = (5 * doy + 2) / 153;
+			long d = doy - (153 * mp + 2) / 5 + 1;
+			long m = mp < 10 ? mp + 3 : mp - 9;
+			long y = yoe + era * 400 + (m <= 2 ? 1 : 0);
+
+			datePrefix[0] = (byte)('0' + ((y / 1000) % 10));
+			datePrefix[1] = (byte)('0' + ((y / 100) % 10));
+			datePrefix[2] = (byte)('0' + ((y / 10) % 10));
+			datePrefix[3] = (byte)('0' + (y % 10));
+			datePrefix[4] = '-';
+			datePrefix[5] = (byte)('0' + (m / 10));
+			datePrefix[6] = (byte)('0' + (m % 10));
+			datePrefix[7] = '-';
+			datePrefix[8] = (byte)('0' + (d / 10));
+			datePrefix[9] = (byte)('0' + (d % 10));
+			datePrefix[10] = 'T';
+			dateDay = day;
+		}
+
+		for (int i = 0; i < datePrefix.length; i++) write(datePrefix[i]);
+
+		long seconds = (millis - (day * MS_PER_DAY)) / 1000;
+		writePadded(seconds / 3600, 2);
+		write(':');
+		writePadded((seconds / 60) % 60, 2);
+		write(':');
+		writePadded(seconds % 60, 2);
+		write('Z');
+		return this;
+	}
+
+	// writes out everything not held back
+	public void flush() throws IOException {
+		flushBuffer();
+		os.flush();
+	}
+
+	public void close() throws IOException {
+		try {
+			flushBuffer();
+		} finally {
+			os.close();
+		}
+	}
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2013 Jorrit "Chainfire" Jongma
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.chainfire.geolog.data;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import android.database.Cursor;
+
+// Reads an export cursor (see Database.Location.listForExport) on its own thread, into batches
+// of primitive arrays handed over through a bounded queue. Stepping the cursor, which is where
+// SQLite does its work, overlaps with filtering and formatting, and the reader blocks once
+// QUEUE_BATCHES batches are waiting. Batches are recycled, no allocation after the first few.
+// Only the reader thread touches the cursor between start() and finish(), that includes
+// getCount(), which runs the whole query on a SQLiteCursor.
+public class ExportReader {
+	public static final int BATCH_ROWS = 1024;
+	public static final int QUEUE_BATCHES = 4;
+
+	// ok: 1 or 0 if the cursor has COLUMN_OK, OK_UNKNOWN otherwise. prevTime: -1 if NULL, see
+	// hasPrevTime(). accuracy and activity are ordinals.
+	public static final byte OK_UNKNOWN = -1;
+
+	public static class Batch {
+		public final long[] id = new long[BATCH_ROWS];
+		public final long[] time = new long[BATCH_ROWS];
+		public final double[] latitude = new double[BATCH_ROWS];
+		public final double[] longitude = new double[BATCH_ROWS];
+		public final float[] accuracyDistance = new float[BATCH_ROWS];
+		public final byte[] accuracy = new byte[BATCH_ROWS];
+		public final byte[] activity = new byte[BATCH_ROWS];
+		public final boolean[] segmentStart = new boolean[BATCH_ROWS];
+		public final byte[] ok = new byte[BATCH_ROWS];
+		public final long[] prevTime = new long[BATCH_ROWS];
+		public int count = 0;
+	}
+
+	private static final Batch END_BATCH = new Batch();
+
+	private final Cursor cursor;
+	private final int okIndex;
+	private final int prevTimeIndex;
+	private final int lastTimeIndex;
+	private final BlockingQueue<Batch> pending = new ArrayBlockingQueue<Batch>(QUEUE_BATCHES + 1);
+	private final BlockingQueue<Batch> free = new ArrayBlockingQueue<Batch>(QUEUE_BATCHES + 3);
+	private Thread thread = null;
+	private volatile boolean stopped = false;
+	private volatile RuntimeException error = null;
+	private volatile long lastTime = -1;
+	private volatile int count = 0;
+
+	// timing, in ns
+	private volatile long readTime = 0;
+	private volatile long blockedTime = 0;
+	private long waitTime = 0;
+
+	public ExportReader(Cursor cursor) {
+		this.cursor = cursor;
+		okIndex = cursor.getColumnIndex(Database.Location.COLUMN_OK);
+		prevTimeIndex = cursor.getColumnIndex(Database.Location.COLUMN_PREV_TIME);
+		lastTimeIndex = cursor.getColumnIndex(Database.Location.COLUMN_LAST_TIME);
+	}
+	
+	// the cursor has COLUMN_PREV_TIME, Batch.prevTime is valid
+	public boolean hasPrevTime() {
+		return (prevTimeIndex >= 0);
+	}
+
+	public void start() {
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				read();
+			}
+		}, "ExportReader");
+		thread.start();
+	}
+
+	private void read() {
+		long blocked = 0;
+		long start = System.nanoTime();
+		try {
+			Database.Location loc = new Database.Location();
+			Database.Location.Reader reader = new Database.Location.Reader(cursor);
+
+			boolean more = cursor.moveToFirst();
+			count = cursor.getCount();
+			if (more && (lastTimeIndex >= 0) && !cursor.isNull(lastTimeIndex)) lastTime = cursor.getLong(lastTimeIndex);
+			while (more && !stopped) {
+				Batch batch = free.poll();
+				if (batch == null) batch = new Batch();
+				batch.count = 0;
+
+				while (more && (batch.count < BATCH_ROWS)) {
+					int i = batch.count;
+					reader.read(loc);
+					batch.id[i] = loc.getId();
+					batch.time[i] = loc.getTime();
+					batch.latitude[i] = loc.getLatitude();
+					batch.longitude[i] = loc.getLongitude();
+					batch.accuracyDistance[i] = loc.getAccuracyDistance();
+					batch.accuracy[i] = (byte)loc.getAccuracySetting().ordinal();
+					batch.activity[i] = (byte)loc.getActivity().ordinal();
+					batch.segmentStart[i] = loc.isSegmentStart();
+					batch.ok[i] = (okIndex >= 0) ? (byte)((cursor.getInt(okIndex) != 0) ? 1 : 0) : OK_UNKNOWN;
+					batch.prevTime[i] = ((prevTimeIndex >= 0) && !cursor.isNull(prevTimeIndex)) ? cursor.getLong(prevTimeIndex) : -1;
+					batch.count++;
+					more = cursor.moveToNext();
+				}
+
+				long now = System.nanoTime();
+				pending.put(batch);
+				blocked += System.nanoTime() - now;
+			}
+		} catch (InterruptedException e) {
+			error = new IllegalStateException("reader interrupted");
+		} catch (RuntimeException e) {
+			error = e;
+		} finally {
+			readTime = System.nanoTime() - start - blocked;
+			blockedTime = blocked;
+			// finish() makes room if needed
+			while (true) {
+				try {
+					pending.put(END_BATCH);
+					break;
+				} catch (InterruptedException e) {
+				}
+			}
+		}
+	}
+
+	// the next batch, null after the last one
+	public Batch take() throws IOException {
+		try {
+			long now = System.nanoTime();
+			Batch batch = pending.take();
+			waitTime += System.nanoTime() - now;
+			if (batch == END_BATCH) {
+				// keep returning null
+				pending.offer(END_BATCH);
+				if (error != null) throw error;
+				return null;
+			}
+			return batch;
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+	}
+
+	// done with a batch from take()
+	public void recycle(Batch batch) {
+		free.offer(batch);
+	}
+
+	// stops reading if not done yet, and waits for the reader thread to end
+	public void finish() {
+		if (thread == null) return;
+		stopped = true;
+		while (true) {
+			// make room, the reader may be blocked on a full queue
+			try {
+				Batch batch = pending.poll(10, TimeUnit.MILLISECONDS);
+				if (batch == END_BATCH) break;
+				if (batch != null) recycle(batch);
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+		}
+		thread = null;
+	}
+
+	// rows in the cursor, set before the first batch is returned
+	public int getCount() {
+		return count;
+	}
+
+	// COLUMN_LAST_TIME of the range, -1 if unknown. Set before the first batch is returned.
+	public long getLastTime() {
+		return lastTime;
+	}
+
+	// time spent reading the cursor, after finish()
+	public long getReadTime() {
+		return readTime;
+	}
+
+	// time the reader was blocked on a full queue (the consumer is slower), after finish()
+	public long getBlockedTime() {
+		return blockedTime;
+	}
+
+	// time take() waited for a batch (the reader is slower)
+	public long getWaitTime() {
+		return waitTime;
+	}
+}
@@ -16,311 +16,809 @@
 
 package eu.chainfire.geolog.data;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.io.UnsupportedEncodingException;
+import java.io.RandomAccessFile;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.LinkedList;
 import java.util.Locale;
 import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 import eu.chainfire.geolog.Application;
 import eu.chainfire.geolog.Debug;
-import eu.chainfire.geolog.R;
 import eu.chainfire.geolog.data.Database.*;
 
-import android.app.Activity;
-import android.app.AlertDialog;
-import android.app.ProgressDialog;
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.database.Cursor;
-import android.os.AsyncTask;
-import android.text.Html;
+import android.os.Bundle;
+import android.preference.PreferenceManager;
 
 public class Exporter {
 	public static enum Format { GPX, KML };
+	public static enum Split { NONE, DAY, TRACKS, SIZE };
+	
+	// Incremental export watermark: the (time, _id) of the row the next export continues at
+	public static final String PREF_WATERMARK_TIME = "export_watermark_time";
+	public static final String PREF_WATERMARK_ID = "export_watermark_id";
 
-	private interface OnExportProgressListener {
+	// Called from the exporting thread, at most every PROGRESS_INTERVAL ms
+	public interface OnExportProgressListener {
 		public void OnExportProgress(int cur, int total);
 	}
+	
+	// Time spent per stage during the last export, in ms. The stages run concurrently, so these
+	// add up to more than total. read: stepping the cursor (ExportReader), readBlocked: the
+	// reader waiting for the rest to catch up. filter: filtering and tracks, with a single thread
+	// also formatting. filterWait: waiting for the reader. format: formatting on the ParallelSink
+	// threads, formatWait: waiting for them. write: writing out, including compression hand-over.
+	public static class Timings {
+		public long read = 0;
+		public long readBlocked = 0;
+		public long filter = 0;
+		public long filterWait = 0;
+		public long format = 0;
+		public long formatWait = 0;
+		public long write = 0;
+		public long total = 0;
+
+		@Override
+		public String toString() {
+			return String.format(Locale.ENGLISH, "read %d (blocked %d) filter %d (wait %d) format %d (wait %d) write %d total %d", read, readBlocked, filter, filterWait, format, formatWait, write, total);
+		}
+	}
+	
+	public static final long PROGRESS_INTERVAL = 250;
+	
+	// Uncompressed output is made resumable at a track boundary this often (ms), compressed
+	// output only when a new part is started
+	public static final long CHECKPOINT_INTERVAL = 5000;
 			
 	private final Context context;
 	
 	private Format format = Format.GPX;
+	private int threads = 1;
 	private long trackMergeGap = 0;
 	private long dateStart = -1;
 	private long dateEnd = -1;
 	private long trackMinPoints = 0;
 	private long trackMinTime = 0;
 	private long trackMinDistance = 0;
-	private long accuracyLowPowerUnknown = 0;
-	private long accuracyLowPowerStill = 0;
-	private long accuracyLowPowerFoot = 0;
-	private long accuracyLowPowerBicycle = 0;
-	private long accuracyLowPowerVehicle = 0;
-	private long accuracyHighAccuracyUnknown = 0;
-	private long accuracyHighAccuracyStill = 0;
-	private long accuracyHighAccuracyFoot = 0;
-	private long accuracyHighAccuracyBicycle = 0;
-	private long accuracyHighAccuracyVehicle = 0;
+	private AccuracyFilter accuracyFilter = new AccuracyFilter();
+	private long simplifyTolerance = 0;
+	private int compression = 0;
+	private boolean incremental = false;
+	private Split split = Split.NONE;
+	private long splitValue = 0;
+	private long watermarkTime = -1;
+	private long watermarkId = -1;
+	private long simplifiedPointsIn = 0;
+	private long simplifiedPointsOut = 0;
+	private volatile boolean cancelled = false;
+	private volatile boolean nothingNew = false;
+	private Timings timings = new Timings();
+	private final AtomicLong formatTime = new AtomicLong(); // ns, summed over ParallelSink threads
+	private long formatWaitTime = 0; // ns
+	private long writeTime = 0; // ns
 	
 	private int inSegment = 0;
 	private boolean isSegmentStart = false;
 	private long lastTime = -1;		    	
-	private long lastTrackStartBytes = 0;
+	private boolean trackQualified = false;
+	private long trackRowTime = -1; // first row of the current track
+	private long trackRowId = -1;
 	private long lastTrackStartTime = 0;
 	private double trackLatMin = 0;
 	private double trackLatMax = 0;
 	private double trackLongMin = 0;
 	private double trackLongMax = 0;	
+	private double trackDistance = -1;
+	private final double[] trackDistanceBox = new double[4];
 	
 	public Exporter(Context context) {
 		this.context = context;
 	}
 
-	public void export(Cursor cursor) {
-		if (context instanceof Activity) {
-			(new ExportAsync()).execute(cursor);
+	// Exports to file on the calling thread. If an export with the same settings was 
+	// interrupted (process killed, I/O error), it continues from that export's last checkpoint.
+	// Returns the file written (the manifest if split), or null if the export failed, was 
+	// cancelled, or there was nothing new to export (see isNothingNew()).
+	public String export(Database.Helper helper, OnExportProgressListener callback) {
+		cancelled = false;
+		nothingNew = false;
+		
+		Checkpoint checkpoint = Checkpoint.load(context);
+		FileOutputFactory factory = null;
+		if ((checkpoint != null) && checkpoint.settings.equals(getSettings())) {
+			factory = new FileOutputFactory(checkpoint.base, getExtension(), split != Split.NONE, checkpoint.closed);
+			if (!factory.canResume(checkpoint)) factory = null;
+		}
+		if (factory == null) {
+			Checkpoint.clear(context);
+			checkpoint = new Checkpoint(getSettings(), newBase());
+			factory = new FileOutputFactory(checkpoint.base, getExtension(), split != Split.NONE, checkpoint.closed);
 		} else {
-			performExport(null, cursor);
+			Debug.log(Debug.EXPORT, Debug.INFO, "RESUME %s part %d at %d/%d, %d bytes", checkpoint.base, checkpoint.part.index, checkpoint.rowTime, checkpoint.rowId, checkpoint.bytes);
+		}
+		
+		Cursor cursor = (checkpoint.rowTime >= 0) ? query(helper, checkpoint.rowTime, checkpoint.rowId) : query(helper);
+		try {
+			exportTo(callback, factory, cursor, true, checkpoint);
+		} catch (Exception e) {
+			e.printStackTrace();
+			// completed parts are kept, and unless cancelled so is the checkpoint
+			if (cancelled) Checkpoint.clear(context);
+			return null;
+		} finally {
+			if (cursor != null) cursor.close();
 		}
+		
+		Checkpoint.clear(context);
+		if (incremental) saveWatermark();
+		if (nothingNew) return null;
+		return factory.getResult();
 	}
 	
-	private double gps2m(double lat_a, double lng_a, double lat_b, double lng_b) {
-	    double pk = (double) (180/Math.PI);
-
-	    double a1 = lat_a / pk;
-	    double a2 = lng_a / pk;
-	    double b1 = lat_b / pk;
-	    double b2 = lng_b / pk;
-
-	    double t1 = Math.cos(a1)*Math.cos(a2)*Math.cos(b1)*Math.cos(b2);
-	    double t2 = Math.cos(a1)*Math.sin(a2)*Math.cos(b1)*Math.sin(b2);
-	    double t3 = Math.sin(a1)*Math.sin(b1);
-	    double tt = Math.acos(t1 + t2 + t3);
-
-	    return 6366000*tt;
-	}	
+	// Stops a running export() from another thread, the current part is deleted
+	public void cancel() {
+		cancelled = true;
+	}
 	
-	private boolean shouldCancel() {
+	public boolean isCancelled() {
+		return cancelled;
+	}
+	
+	// the last incremental export had no completed tracks, no file was written
+	public boolean isNothingNew() {
+		return nothingNew;
+	}
+	
+	// Diagonal of the track's bounding box. shouldCancel() asks for it after every point, but
+	// the box only changes when a point extends it, so the last result is kept.
+	private double getTrackDistance() {
+		if (
+				(trackDistance < 0) ||
+				(trackDistanceBox[0] != trackLatMin) || (trackDistanceBox[1] != trackLongMin) ||
+				(trackDistanceBox[2] != trackLatMax) || (trackDistanceBox[3] != trackLongMax)
+		) {
+			trackDistance = Geodesy.distance(trackLatMin, trackLongMin, trackLatMax, trackLongMax);
+			trackDistanceBox[0] = trackLatMin;
+			trackDistanceBox[1] = trackLongMin;
+			trackDistanceBox[2] = trackLatMax;
+			trackDistanceBox[3] = trackLongMax;
+		}
+		return trackDistance;
+	}
+	
+	private boolean shouldCancel(boolean log) {
 		boolean cancel = false;
 		
 		if ((trackMinPoints > 0) && (inSegment < trackMinPoints)) {
-			Debug.log(String.format(Locale.ENGLISH, "CANCEL POINTS %d < %d", inSegment, trackMinPoints));
+			if (log) Debug.log(Debug.EXPORT, Debug.INFO, "CANCEL POINTS %d < %d", inSegment, trackMinPoints);
 			cancel = true;		    							
 		}
 		
 		if ((trackMinTime > 0) && (lastTime - lastTrackStartTime < trackMinTime * 1000)) { 
-			Debug.log(String.format(Locale.ENGLISH, "CANCEL TIME %d < %d", (int)((lastTime - lastTrackStartTime) / 1000), trackMinTime));
+			if (log) Debug.log(Debug.EXPORT, Debug.INFO, "CANCEL TIME %d < %d", (int)((lastTime - lastTrackStartTime) / 1000), trackMinTime);
 			cancel = true;
 		}
 		
 		if (trackMinDistance > 0) {
-			double m = gps2m(trackLatMin, trackLongMin, trackLatMax, trackLongMax);
+			double m = getTrackDistance();
 			if (m < trackMinDistance) {
-				Debug.log(String.format(Locale.ENGLISH, "CANCEL DISTANCE %d < %d", (int)m, trackMinDistance));
+				if (log) Debug.log(Debug.EXPORT, Debug.INFO, "CANCEL DISTANCE %d < %d", (int)m, trackMinDistance);
 				cancel = true;		    								
 			}		    							
 		}		
 		
 		return cancel;
 	}
-			
-	private String performExport(OnExportProgressListener callback, Cursor cursor) {
-		String filename = "";
+	
+	// The rows to export between dateStart and dateEnd, with the accuracy filter done by SQLite.
+	// Rejected rows that still matter to the export loop are returned flagged, see
+	// Database.Location.listForExport
+	public Cursor query(Database.Helper helper) {
+		long timeStart = dateStart;
+		long idStart = -1;
+		if (incremental) {
+			loadWatermark();
+			if ((watermarkTime >= 0) && (watermarkTime >= dateStart)) {
+				timeStart = watermarkTime;
+				idStart = watermarkId;
+			}
+		}
+		return query(helper, timeStart, idStart);
+	}
+	
+	private Cursor query(Database.Helper helper, long timeStart, long idStart) {
+		return Database.Location.listForExport(helper, Database.Location.PROJECTION_EXPORT, timeStart, idStart, dateEnd, accuracyFilter.toSql());
+	}
+	
+	private void loadWatermark() {
+		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+		watermarkTime = prefs.getLong(PREF_WATERMARK_TIME, -1);
+		watermarkId = prefs.getLong(PREF_WATERMARK_ID, -1);
+	}
+	
+	private void saveWatermark() {
+		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+		prefs.edit().
+			putLong(PREF_WATERMARK_TIME, watermarkTime).
+			putLong(PREF_WATERMARK_ID, watermarkId).
+			commit();
+	}
+	
+	// the next incremental export starts from scratch
+	public static void clearWatermark(Context context) {
+		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+		prefs.edit().
+			remove(PREF_WATERMARK_TIME).
+			remove(PREF_WATERMARK_ID).
+			commit();
+	}
+	
+	// Points, time span and bounding box only grow while a track is written, so once a track 
+	// passes shouldCancel() it can't fail later: from then on its output is released, and only
+	// the start of a track that hasn't qualified yet is held in memory.
+	private void startTrack(TrackSink sink) throws IOException {
+		sink.startTrack();
+		trackQualified = false;
+	}
+	
+	private void qualifyTrack(TrackSink sink) throws IOException {
+		// in incremental mode the last track may still be dropped at the end, so nothing is 
+		// released before a track ends
+		if (!incremental && !trackQualified && (inSegment > 0) && !shouldCancel(false)) {
+			sink.commitTrack();
+			trackQualified = true;
+		}
+	}
+	
+	private void endTrack(TrackSink sink) throws IOException {
+		if ((inSegment > 0) && (trackQualified || !shouldCancel(true))) {
+			sink.endTrack();
+		} else {
+			sink.discardTrack();
+		}
+	}
+	
+	private FormatWriter newWriter(ExportOutput out) {
 		switch (format) {
-		case GPX: filename = Application.SDCARD_PATH + "/geolog.gpx"; break;
-		case KML: filename = Application.SDCARD_PATH + "/geolog.kml"; break;
+		case GPX: return new GPXWriter(out);
+		case KML: return new KMLWriter(out);
 		}
-		(new File(filename)).delete();
-				
-		try {
-			FileOutputStream fos = new FileOutputStream(filename, false);			
+		return null;
+	}
+	
+	// Writes the export to os, which is flushed but not closed. os doesn't need to be seekable.
+	// Not split, regardless of setSplit().
+	public void exportTo(final OutputStream os, Cursor cursor) throws IOException {
+		exportTo(null, new OutputFactory() {
+			@Override
+			public OutputStream openPart(int index) throws IOException {
+				if (index > 0) throw new IllegalStateException();
+				return os;
+			}
+			
+			@Override
+			public boolean isResumable() {
+				return false;
+			}
+
+			@Override
+			public OutputStream resumePart(int index, long bytes) throws IOException {
+				throw new IllegalStateException();
+			}
+
+			@Override
+			public void closePart(OutputStream os, PartInfo info) throws IOException {
+			}
+
+			@Override
+			public void abortPart(OutputStream os, int index) {
+			}
+		}, cursor, false, null);
+	}
+	
+	private boolean shouldSplit(Part part, long time) {
+		PartInfo info = part.info;
+		if (info.tracks == 0) return false;
+		switch (split) {
+		case NONE: return false;
+		case DAY: return (localDay(time) != localDay(info.timeFirst));
+		case TRACKS: return (info.tracks >= splitValue);
+		case SIZE: return (part.getEstimatedBytes() >= splitValue * 1024L * 1024L);
+		}
+		return false;
+	}
+	
+	private static long localDay(long time) {
+		return (time + TimeZone.getDefault().getOffset(time)) / (24L * 60L * 60L * 1000L);
+	}
+	
+	// checkpoint: null to not write checkpoints, continues from it if it has a row set
+	private void exportTo(OnExportProgressListener callback, OutputFactory factory, Cursor cursor, boolean allowSplit, Checkpoint checkpoint) throws IOException {
+		inSegment = 0;
+		isSegmentStart = false;
+		lastTime = -1;
+		lastTrackStartTime = 0;
+		trackQualified = false;
+		trackDistance = -1;
+		trackRowTime = -1;
+		trackRowId = -1;
+		if (incremental) loadWatermark();
+		
+		String exporter = "GeoLog";				
+    	
+		PackageManager pm = context.getPackageManager();
+    	if (pm != null) {
+    		try {
+    			PackageInfo pi = pm.getPackageInfo(context.getPackageName(), 0);
+    			if (pi != null) {
+    				exporter += " v" + pi.versionName;
+    			}
+    		} catch (Exception e) {
+    		}
+    	}
+    	
+    	// only used for debug logging - exported is in writer
+		SimpleDateFormat simpleDateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.ENGLISH);
+		simpleDateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));			
+    			    	
+    	Part part;
+    	int rowsBase = 0;
+    	if ((checkpoint != null) && (checkpoint.rowTime >= 0)) {
+    		rowsBase = checkpoint.rows;
+    		if (checkpoint.bytes >= 0) {
+    			part = new Part(checkpoint.part, factory.resumePart(checkpoint.part.index, checkpoint.bytes), null);
+    		} else {
+    			part = new Part(new PartInfo(checkpoint.part.index), factory.openPart(checkpoint.part.index), exporter);
+    		}
+    	} else {
+    		part = new Part(new PartInfo(0), factory.openPart(0), exporter);
+    	}
+    	PartSink partSink = new PartSink(part);
+    	long lastCheckpoint = System.nanoTime();
+    	long lastProgress = System.nanoTime();
+    	TrackSink sink = partSink;
+    	
+    	SimplifyingSink simplifying = null;
+    	if (simplifyTolerance > 0) {
+    		simplifying = new SimplifyingSink(sink, simplifyTolerance);
+    		sink = simplifying;
+    	}
+    	simplifiedPointsIn = 0;
+    	simplifiedPointsOut = 0;
+    	
+    	formatTime.set(0);
+    	formatWaitTime = 0;
+    	writeTime = 0;
+    	long start = System.nanoTime();
+    	ExportReader reader = null;
+    	try {
+	    	startTrack(sink);
+
+	    	Cursor c = cursor;
+	    	if (c != null) {
+	    		// rows are read on the reader's thread, in batches. Counting runs the query, so
+	    		// that is done there as well, the count is known once the first batch is.
+	    		reader = new ExportReader(c);
+	    		reader.start();
+	    		int count = 0;
+			
+	    		ExportReader.Batch batch = null;
+	    		int i = 0;
+	    		int index = 0;
+	    		while (true) {
+	    			if (cancelled) throw new InterruptedIOException("export cancelled");
+	    			
+	    			if ((batch == null) || (i == batch.count)) {
+	    				if (batch != null) reader.recycle(batch);
+	    				batch = reader.take();
+	    				i = 0;
+	    				if (batch == null) break;
+	    				count = reader.getCount();
+	    			}
+	    			long rowId = batch.id[i];
+	    			long time = batch.time[i];
+	    			double latitude = batch.latitude[i];
+	    			double longitude = batch.longitude[i];
+    			
+	    			if (Debug.isEnabled(Debug.EXPORT, Debug.VERBOSE)) Debug.log(Debug.EXPORT, Debug.VERBOSE, "WRITE %d %.5f %.5f %s", index, latitude, longitude, simpleDateFormat.format(new Date(time)));
+    			
+	    			if (lastTrackStartTime == 0) {
+	    				trackRowTime = time;
+	    				trackRowId = rowId;
+	    				lastTrackStartTime = time;
+	    				trackLatMin = latitude;
+	    				trackLatMax = latitude;
+	    				trackLongMin = longitude;
+	    				trackLongMax = longitude;
+	    			}
+	    			isSegmentStart = isSegmentStart || batch.segmentStart[i]; // carries over in case not used
+    			
+	    			if (reader.hasPrevTime()) {
+	    				// rows may have been left out by the query, it tells us what lastTime would be
+	    				lastTime = batch.prevTime[i];
+	    			}
+    			
+	    			boolean ok = (batch.ok[i] != ExportReader.OK_UNKNOWN) ? (batch.ok[i] == 1) : accuracyFilter.accept(batch.accuracy[i], batch.activity[i], batch.accuracyDistance[i]);
+
+	    			if (ok) {
+	    				if (isSegmentStart) {
+	    					if (time - lastTime < trackMergeGap * 1000) {
+	    						if (Debug.isEnabled(Debug.EXPORT, Debug.VERBOSE)) Debug.log(Debug.EXPORT, Debug.VERBOSE, "MERGE %d %ds", index, (int)((time - lastTime) / 1000));
+    						
+	    						isSegmentStart = false;
+	    					}
+	    				}
+    					
+	    				if (isSegmentStart) {
+	    					if (inSegment > 0) {
+	    						endTrack(sink);
+								Debug.log(Debug.EXPORT, Debug.INFO, "TRACK %d", index);
+								
+								if (allowSplit && shouldSplit(part, time)) {
+									// between tracks, nothing is pending
+									part.finish();
+									factory.closePart(part.os, part.info);
+									part.shutdown();
+									Debug.log(Debug.EXPORT, Debug.INFO, "SPLIT %d: %d tracks, %d points, %d bytes", part.info.index, part.info.tracks, part.info.points, part.info.bytes);
+									part = new Part(new PartInfo(part.info.index + 1), factory.openPart(part.info.index + 1), exporter);
+									partSink.setPart(part);
+									
+									if (checkpoint != null) {
+										// the new part is started over on resume
+										lastCheckpoint = System.nanoTime();
+										checkpoint.set(time, rowId, rowsBase + index, part.info, -1);
+										checkpoint.save(context);
+									}
+								} else if ((checkpoint != null) && factory.isResumable() && (System.nanoTime() - lastCheckpoint >= CHECKPOINT_INTERVAL * 1000000L)) {
+									// everything so far goes to the file, the part continues after it on resume
+									part.flush();
+									lastCheckpoint = System.nanoTime();
+									checkpoint.set(time, rowId, rowsBase + index, part.info, part.info.bytes);
+									checkpoint.save(context);
+								}
+								
+								startTrack(sink);
+    						
+	    						trackRowTime = time;
+	    						trackRowId = rowId;
+	    						lastTrackStartTime = time;
+			    				trackLatMin = latitude;
+			    				trackLatMax = latitude;
+			    				trackLongMin = longitude;
+			    				trackLongMax = longitude;
+
+	    						inSegment = 0;
+	    					}
+	    					isSegmentStart = false;
+	    				}
+
+	    				// if !ok we don't know location is correct, so we only do this here
+	    				trackLatMin = Math.min(trackLatMin, latitude);		    			
+	    				trackLatMax = Math.max(trackLatMax, latitude);
+	    				trackLongMin = Math.min(trackLongMin, longitude);
+	    				trackLongMax = Math.max(trackLongMax, longitude);
+    				
+	    				sink.point(time, latitude, longitude);
+	    				inSegment++;
+	    			} else {
+						if (Debug.isEnabled(Debug.EXPORT, Debug.VERBOSE)) Debug.log(Debug.EXPORT, Debug.VERBOSE, "SKIP %d %dm", index, (int)batch.accuracyDistance[i]);		    				
+	    			}
+    			
+	    			lastTime = time; // take into account even if we don't store point, because we know time is correct
+	    			qualifyTrack(sink);
+    			
+	    			i++;
+	    			index++;
+	    			if ((callback != null) && ((index & 0xFF) == 0) && (System.nanoTime() - lastProgress >= PROGRESS_INTERVAL * 1000000L)) {
+	    				lastProgress = System.nanoTime();
+	    				callback.OnExportProgress(rowsBase + index, rowsBase + count);
+	    			}
+	    		}
+	    		if ((callback != null) && (count > 0)) callback.OnExportProgress(rowsBase + count, rowsBase + count);
+	    		
+	    		// the last row in range may have been left out
+	    		if (reader.getLastTime() >= 0) lastTime = reader.getLastTime();
+	    	}
+    	
+	    	// the range can't grow past its end, or now
+	    	long rangeEnd = System.currentTimeMillis();
+	    	if ((dateEnd >= 0) && (dateEnd < rangeEnd)) rangeEnd = dateEnd;
+	    	
+	    	if (incremental && (inSegment > 0) && (lastTime + trackMergeGap * 1000 < rangeEnd)) {
+	    		// No later point can be merged into the last track anymore, it is complete. The
+	    		// next export continues after it.
+	    		endTrack(sink);
+	    		watermarkTime = lastTime + 1;
+	    		watermarkId = -1;
+	    		Debug.log(Debug.EXPORT, Debug.INFO, "WATERMARK %d %d", watermarkTime, watermarkId);
+	    	} else if (incremental) {
+	    		// The last track may still continue or be merged into, so it is left for the next
+	    		// export, which continues at its first row. Exporting starts from a clean state at
+	    		// that row, exactly as it did here.
+	    		sink.discardTrack();
+	    		if (trackRowTime >= 0) {
+	    			watermarkTime = trackRowTime;
+	    			watermarkId = trackRowId;
+	    		}
+	    		Debug.log(Debug.EXPORT, Debug.INFO, "WATERMARK %d %d", watermarkTime, watermarkId);
+	    	} else {
+	    		endTrack(sink);
+	    	}
+	    	
+	    	if ((part.info.tracks == 0) && ((part.info.index > 0) || incremental)) {
+	    		// nothing left for the last part (incremental), leave it out. If that is the only
+	    		// part there is nothing new, don't leave an empty file every time.
+	    		factory.abortPart(part.os, part.info.index);
+	    		if (part.info.index == 0) nothingNew = true;
+	    	} else {
+	    		part.finish();
+	    		factory.closePart(part.os, part.info);
+	    	}
+	    	
+	    	if (simplifying != null) {
+	    		simplifiedPointsIn = simplifying.getSimplifier().getPointsIn();
+	    		simplifiedPointsOut = simplifying.getSimplifier().getPointsOut();
+	    		Debug.log(Debug.EXPORT, Debug.INFO, "SIMPLIFY %dm: %d --> %d points (%.1f%%)", simplifyTolerance, simplifiedPointsIn, simplifiedPointsOut, simplifying.getSimplifier().getRatio() * 100.0f);
+	    	}
+    	} catch (IOException e) {
+    		abortPart(factory, part, checkpoint);
+    		throw e;
+    	} catch (RuntimeException e) {
+    		abortPart(factory, part, checkpoint);
+    		throw e;
+    	} finally {
+    		if (reader != null) reader.finish();
+    		part.shutdown();
+    		
+    		Timings t = new Timings();
+    		t.total = (System.nanoTime() - start) / 1000000L;
+    		if (reader != null) {
+    			t.read = reader.getReadTime() / 1000000L;
+    			t.readBlocked = reader.getBlockedTime() / 1000000L;
+    			t.filterWait = reader.getWaitTime() / 1000000L;
+    		}
+    		t.format = formatTime.get() / 1000000L;
+    		t.formatWait = formatWaitTime / 1000000L;
+    		t.write = writeTime / 1000000L;
+    		t.filter = Math.max(0, t.total - t.filterWait - t.formatWait - t.write);
+    		timings = t;
+    		Debug.log(Debug.EXPORT, Debug.INFO, "TIMING %s", t);
+    	}
+	}
+			
+	// the part is kept if the checkpoint continues it
+	private void abortPart(OutputFactory factory, Part part, Checkpoint checkpoint) {
+		if (!cancelled && (checkpoint != null) && (checkpoint.part != null) && (checkpoint.part.index == part.info.index) && (checkpoint.bytes >= 0)) {
+			try {
+				part.os.close();
+			} catch (Exception e) {
+			}
+		} else {
+			factory.abortPart(part.os, part.info.index);
+		}
+	}
+	
+	// Parts are written to <name>.part, and only renamed to <name> once complete. When split,
+	// a manifest listing the completed parts is (re)written after every part.
+	private class FileOutputFactory implements OutputFactory {
+		private final String base;
+		private final String extension;
+		private final boolean split;
+		private final ArrayList<PartInfo> parts;
+		private final SimpleDateFormat iso = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.ENGLISH);
+		
+		// parts: the parts already completed, parts closed are added to it
+		public FileOutputFactory(String base, String extension, boolean split, ArrayList<PartInfo> parts) {
+			this.base = base;
+			this.extension = extension;
+			this.split = split;
+			this.parts = parts;
+			iso.setTimeZone(TimeZone.getTimeZone("UTC"));
+		}
+		
+		public String getFilename(int index) {
+			if (!split) return base + extension;
+			return base + String.format(Locale.ENGLISH, "-%03d", index + 1) + extension;
+		}
+		
+		public String getManifestFilename() {
+			return base + ".manifest.csv";
+		}
+		
+		// first part, or the manifest if split
+		public String getResult() {
+			return split ? getManifestFilename() : getFilename(0);
+		}
+		
+		// the files the checkpoint refers to are still there
+		public boolean canResume(Checkpoint checkpoint) {
+			for (PartInfo info : parts) {
+				if (!(new File(getFilename(info.index))).exists()) return false;
+			}
+			if (checkpoint.bytes < 0) return true;
+			File file = new File(getFilename(checkpoint.part.index) + ".part");
+			return isResumable() && file.exists() && (file.length() >= checkpoint.bytes);
+		}
+
+		@Override
+		public OutputStream openPart(int index) throws IOException {
+			String filename = getFilename(index);
+			(new File(filename)).delete();
+			(new File(filename + ".part")).delete();
+			
+			FileOutputStream fos = new FileOutputStream(filename + ".part", false);
+			if (compression == 0) return fos;
 			try {
-				FormatWriter writer = null;
+				OutputStream buffered = new BufferedOutputStream(fos, CompressingOutputStream.BLOCK_SIZE);
 				switch (format) {
-				case GPX: writer = new GPXWriter(fos); break;
-				case KML: writer = new KMLWriter(fos); break;
+				case GPX: return CompressingOutputStream.gzip(buffered, compression);
+				case KML: return CompressingOutputStream.zip(buffered, "doc.kml", compression);
 				}
-				
-				String exporter = "GeoLog";				
-		    	
-				PackageManager pm = context.getPackageManager();
-		    	if (pm != null) {
-		    		try {
-		    			PackageInfo pi = pm.getPackageInfo(context.getPackageName(), 0);
-		    			if (pi != null) {
-		    				exporter += " v" + pi.versionName;
-		    			}
-		    		} catch (Exception e) {
-		    		}
-		    	}
-		    	
-		    	// only used for debug logging - exported is in writer
-				SimpleDateFormat simpleDateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.ENGLISH);
-				simpleDateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));			
-		    			    	
-		    	writer.header(exporter);
-		    			    	
-		    	lastTrackStartBytes = fos.getChannel().position();		
-		    	writer.startSegment();
-
-		    	Cursor c = cursor;
-		    	if ((c != null) && (c.getCount() > 0)) {
-			    	Database.Location loc = new Database.Location();
-	    			
-		    		c.moveToFirst();
-		    		int index = 0;
-		    		int count = c.getCount();
-		    		while (true) {
-		    			loc.loadFromCursor(c);
-		    			
-		    			Debug.log(String.format(Locale.ENGLISH, "WRITE %d %.5f %.5f %s", index, loc.getLatitude(), loc.getLongitude(), simpleDateFormat.format(new Date(loc.getTime()))));
-		    			
-		    			if (lastTrackStartTime == 0) {
-		    				lastTrackStartTime = loc.getTime();
-		    				trackLatMin = loc.getLatitude();
-		    				trackLatMax = loc.getLatitude();
-		    				trackLongMin = loc.getLongitude();
-		    				trackLongMax = loc.getLongitude();
-		    			}
-		    			isSegmentStart = isSegmentStart || loc.isSegmentStart(); // carries over in case not used
-		    			
-		    			boolean ok = 
-		    				(loc.getAccuracySetting() == Accuracy.NONE) ||
-		    				((loc.getAccuracySetting() == Accuracy.LOW) && (		    					
-		    					((loc.getActivity() == Database.Activity.UNKNOWN) && ((accuracyLowPowerUnknown <= 0) || loc.getAccuracyDistance() <= accuracyLowPowerUnknown)) ||
-		    					((loc.getActivity() == Database.Activity.STILL) && ((accuracyLowPowerStill <= 0) || loc.getAccuracyDistance() <= accuracyLowPowerStill)) ||
-		    					((loc.getActivity() == Database.Activity.FOOT) && ((accuracyLowPowerFoot <= 0) || loc.getAccuracyDistance() <= accuracyLowPowerFoot)) ||
-		    					((loc.getActivity() == Database.Activity.BICYCLE) && ((accuracyLowPowerBicycle <= 0) || loc.getAccuracyDistance() <= accuracyLowPowerBicycle)) ||
-		    					((loc.getActivity() == Database.Activity.VEHICLE) && ((accuracyLowPowerVehicle <= 0) || loc.getAccuracyDistance() <= accuracyLowPowerVehicle))
-		    				)) ||
-		    				((loc.getAccuracySetting() == Accuracy.HIGH) && (
-		    					((loc.getActivity() == Database.Activity.UNKNOWN) && ((accuracyHighAccuracyUnknown <= 0) || loc.getAccuracyDistance() <= accuracyHighAccuracyUnknown)) ||
-		    					((loc.getActivity() == Database.Activity.STILL) && ((accuracyHighAccuracyStill <= 0) || loc.getAccuracyDistance() <= accuracyHighAccuracyStill)) ||
-		    					((loc.getActivity() == Database.Activity.FOOT) && ((accuracyHighAccuracyFoot <= 0) || loc.getAccuracyDistance() <= accuracyHighAccuracyFoot)) ||
-		    					((loc.getActivity() == Database.Activity.BICYCLE) && ((accuracyHighAccuracyBicycle <= 0) || loc.getAccuracyDistance() <= accuracyHighAccuracyBicycle)) ||
-		    					((loc.getActivity() == Database.Activity.VEHICLE) && ((accuracyHighAccuracyVehicle <= 0) || loc.getAccuracyDistance() <= accuracyHighAccuracyVehicle))
-		    				));
-
-		    			if (ok) {
-		    				if (isSegmentStart) {
-		    					if (loc.getTime() - lastTime < trackMergeGap * 1000) {
-		    						Debug.log(String.format(Locale.ENGLISH, "MERGE %d %ds", index, (int)((loc.getTime() - lastTime) / 1000)));
-		    						
-		    						isSegmentStart = false;
-		    					}
-		    				}
-		    					
-		    				if (isSegmentStart) {
-		    					if (inSegment > 0) {		    								    						
-		    						if (shouldCancel()) {
-		    							fos.getChannel().position(lastTrackStartBytes);
-		    							fos.getChannel().truncate(lastTrackStartBytes);		    							
-		    						} else {
-		    							writer.endSegment();
-		    						}
-	    							Debug.log(String.format(Locale.ENGLISH, "TRACK %d", index));
-	    							lastTrackStartBytes = fos.getChannel().position();
-	    					    	writer.startSegment();
-		    						
-		    						lastTrackStartTime = loc.getTime();
-				    				trackLatMin = loc.getLatitude();
-				    				trackLatMax = loc.getLatitude();
-				    				trackLongMin = loc.getLongitude();
-				    				trackLongMax = loc.getLongitude();
-
-		    						inSegment = 0;
-		    					}
-		    					isSegmentStart = false;
-		    				}
-
-		    				// if !ok we don't know location is correct, so we only do this here
-		    				trackLatMin = Math.min(trackLatMin, loc.getLatitude());		    			
-		    				trackLatMax = Math.max(trackLatMax, loc.getLatitude());
-		    				trackLongMin = Math.min(trackLongMin, loc.getLongitude());
-		    				trackLongMax = Math.max(trackLongMax, loc.getLongitude());
-		    				
-		    				writer.point(loc);
-		    				inSegment++;
-		    			} else {
-    						Debug.log(String.format(Locale.ENGLISH, "SKIP %d %dm", index, (int)loc.getAccuracyDistance()));		    				
-		    			}
-		    			
-		    			lastTime = loc.getTime(); // take into account even if we don't store point, because we know time is correct
-		    			
-		    			index++;
-		    			if (callback != null) callback.OnExportProgress(index, count);
-		    			if (!c.moveToNext()) break;
-		    		}
-		    	}
-		    	
-				if ((inSegment == 0) || shouldCancel()) {
-					fos.getChannel().position(lastTrackStartBytes);
-					fos.getChannel().truncate(lastTrackStartBytes);		    							
-				} else {
-					writer.endSegment();
-				}		    	
-
-		    	writer.footer();
-			} finally {
+				return fos;
+			} catch (IOException e) {
 				fos.close();
+				throw e;
 			}
-		} catch (Exception e) {
-			e.printStackTrace();
-			(new File(filename)).delete();
-			return null;
 		}
-		return filename;
-	}
-	
-	private class ExportAsync extends AsyncTask<Cursor, Integer, String> {
-		private ProgressDialog dialog = null;
+		
+		@Override
+		public boolean isResumable() {
+			// a compressed stream can't be continued
+			return (compression == 0);
+		}
 
 		@Override
-		protected void onPreExecute() {
-			dialog = new ProgressDialog(context);		
-			dialog.setTitle(R.string.export_exporting);
-			dialog.setIndeterminate(false);
-			dialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
-			dialog.setCancelable(false);
-			dialog.setProgress(0);
-			dialog.setMax(1);
-			dialog.show();
+		public OutputStream resumePart(int index, long bytes) throws IOException {
+			String filename = getFilename(index) + ".part";
+			RandomAccessFile file = new RandomAccessFile(filename, "rw");
+			try {
+				file.setLength(bytes);
+			} finally {
+				file.close();
+			}
+			return new FileOutputStream(filename, true);
 		}
 
 		@Override
-		protected void onProgressUpdate(Integer... values) {
-			dialog.setMax(values[1]);
-			dialog.setProgress(values[0]);
+		public void closePart(OutputStream os, PartInfo info) throws IOException {
+			String filename = getFilename(info.index);
+			os.close();
+			if (!(new File(filename + ".part")).renameTo(new File(filename))) {
+				throw new IOException("rename failed: " + filename);
+			}
+			
+			if (split) {
+				parts.add(info);
+				writeManifest();
+			}
 		}
 
 		@Override
-		protected String doInBackground(Cursor... params) {
-			return performExport(new OnExportProgressListener() {				
-				@Override
-				public void OnExportProgress(int cur, int total) {
-					publishProgress(cur, total);
-				}
-			}, params[0]);
+		public void abortPart(OutputStream os, int index) {
+			try {
+				os.close();
+			} catch (Exception e) {				
+			}
+			(new File(getFilename(index) + ".part")).delete();
 		}
 		
-		@Override
-		protected void onPostExecute(String result) {
-			dialog.dismiss();
-			
-			(new AlertDialog.Builder(context)).
-				setTitle(R.string.export_export).
-				setMessage(Html.fromHtml(context.getString((result == null) ? R.string.export_failed : R.string.export_complete))).
-				setPositiveButton(R.string.generic_ok, null).
-				show();
-		}				
+		private void writeManifest() throws IOException {
+			String filename = getManifestFilename();
+			ExportOutput out = new ExportOutput(new FileOutputStream(filename + ".part", false), 4096);
+			try {
+				out.write("file,time_start,time_end,tracks,points\n");
+				for (PartInfo info : parts) {
+					out.
+						write((new File(getFilename(info.index))).getName()).write(',').
+						write((info.timeFirst >= 0) ? iso.format(new Date(info.timeFirst)) : "").write(',').
+						write((info.timeLast >= 0) ? iso.format(new Date(info.timeLast)) : "").write(',').
+						writeLong(info.tracks).write(',').
+						writeLong(info.points).write('\n');
+				}
+			} finally {
+				out.close();
+			}
+			if (!(new File(filename + ".part")).renameTo(new File(filename))) {
+				throw new IOException("rename failed: " + filename);
+			}
+		}
 	}
 	
+	private String newBase() {
+		String base = Application.SDCARD_PATH + "/geolog";
+		if (incremental) {
+			// every incremental export gets a file of its own
+			SimpleDateFormat stamp = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.ENGLISH);
+			stamp.setTimeZone(TimeZone.getTimeZone("UTC"));
+			base += "-" + stamp.format(new Date());
+		}
+		return base;
+	}
+	
+	private String getExtension() {
+		switch (format) {
+		case GPX: return (compression > 0) ? ".gpx.gz" : ".gpx";
+		case KML: return (compression > 0) ? ".kmz" : ".kml";
+		}
+		return "";
+	}
+	
+	// A checkpoint only applies to an export with the same settings
+	private String getSettings() {
+		return String.format(Locale.ENGLISH, "%s|%d|%d|%d|%d|%d|%d|%d|%d|%d|%s|%d|%s", 
+				format.name(), compression, trackMergeGap, dateStart, dateEnd, 
+				trackMinPoints, trackMinTime, trackMinDistance, simplifyTolerance, 
+				incremental ? 1 : 0, split.name(), splitValue, accuracyFilter.toSql()
+		);
+	}
+	
+	// Settings as extras, to hand an export to another component
+	public Bundle toBundle() {
+		Bundle bundle = new Bundle();
+		bundle.putString("format", format.name());
+		bundle.putInt("threads", threads);
+		bundle.putInt("compression", compression);
+		bundle.putBoolean("incremental", incremental);
+		bundle.putString("split", split.name());
+		bundle.putLong("splitValue", splitValue);
+		bundle.putLong("trackMergeGap", trackMergeGap);
+		bundle.putLong("dateStart", dateStart);
+		bundle.putLong("dateEnd", dateEnd);
+		bundle.putLong("trackMinPoints", trackMinPoints);
+		bundle.putLong("trackMinTime", trackMinTime);
+		bundle.putLong("trackMinDistance", trackMinDistance);
+		bundle.putLong("simplifyTolerance", simplifyTolerance);
+		bundle.putLongArray("accuracyFilter", accuracyFilter.toArray());
+		return bundle;
+	}
+	
+	public static Exporter fromBundle(Context context, Bundle bundle) {
+		Exporter exporter = new Exporter(context);
+		exporter.setFormat(Format.valueOf(bundle.getString("format")));
+		exporter.setThreads(bundle.getInt("threads", 1));
+		exporter.setCompression(bundle.getInt("compression", 0));
+		exporter.setIncremental(bundle.getBoolean("incremental", false));
+		exporter.setSplit(Split.valueOf(bundle.getString("split")), bundle.getLong("splitValue", 0));
+		exporter.setTrackMergeGap(bundle.getLong("trackMergeGap", 0));
+		exporter.setDateStart(bundle.getLong("dateStart", -1));
+		exporter.setDateEnd(bundle.getLong("dateEnd", -1));
+		exporter.setTrackMinPoints(bundle.getLong("trackMinPoints", 0));
+		exporter.setTrackMinTime(bundle.getLong("trackMinTime", 0));
+		exporter.setTrackMinDistance(bundle.getLong("trackMinDistance", 0));
+		exporter.setSimplifyTolerance(bundle.getLong("simplifyTolerance", 0));
+		exporter.setAccuracyFilter(new AccuracyFilter(bundle.getLongArray("accuracyFilter")));
+		return exporter;
+	}
+	
+	public int getThreads() {
+		return threads;
+	}
+
+	// > 1: rows are still read and filtered in order, formatting is spread over this many 
+	// threads. Output is identical.
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
 	public Format getFormat() {
 		return format;
 	}
@@ -353,84 +851,72 @@ public class Exporter {
 		this.dateEnd = dateEnd;
 	}
 
-	public long getAccuracyLowPowerUnknown() {
-		return accuracyLowPowerUnknown;
-	}
-
-	public void setAccuracyLowPowerUnknown(long accuracyLowPowerUnknown) {
-		this.accuracyLowPowerUnknown = accuracyLowPowerUnknown;
+	public Split getSplit() {
+		return split;
 	}
-
-	public long getAccuracyLowPowerStill() {
-		return accuracyLowPowerStill;
-	}
-
-	public void setAccuracyLowPowerStill(long accuracyLowPowerStill) {
-		this.accuracyLowPowerStill = accuracyLowPowerStill;
-	}
-
-	public long getAccuracyLowPowerFoot() {
-		return accuracyLowPowerFoot;
-	}
-
-	public void setAccuracyLowPowerFoot(long accuracyLowPowerFoot) {
-		this.accuracyLowPowerFoot = accuracyLowPowerFoot;
-	}
-
-	public long getAccuracyLowPowerBicycle() {
-		return accuracyLowPowerBicycle;
-	}
-
-	public void setAccuracyLowPowerBicycle(long accuracyLowPowerBicycle) {
-		this.accuracyLowPowerBicycle = accuracyLowPowerBicycle;
+	
+	public long getSplitValue() {
+		return splitValue;
 	}
 
-	public long getAccuracyLowPowerVehicle() {
-		return accuracyLowPowerVehicle;
+	// Split the export into multiple files, and write a manifest listing them. Files are only
+	// split between tracks, a track goes into the file of the day it starts on (DAY), files 
+	// get value tracks (TRACKS), or a file is closed after the track during which it reached
+	// value MB (SIZE, before compression).
+	public void setSplit(Split split, long value) {
+		this.split = split;
+		this.splitValue = value;
 	}
 
-	public void setAccuracyLowPowerVehicle(long accuracyLowPowerVehicle) {
-		this.accuracyLowPowerVehicle = accuracyLowPowerVehicle;
+	public boolean isIncremental() {
+		return incremental;
 	}
 
-	public long getAccuracyHighAccuracyUnknown() {
-		return accuracyHighAccuracyUnknown;
+	// Only export what wasn't exported by the previous incremental export, to a new file. The
+	// last track is held back until the next export while a point can still be merged into it
+	// (see setTrackMergeGap()). Tracks are kept in memory until they end.
+	public void setIncremental(boolean incremental) {
+		this.incremental = incremental;
 	}
 
-	public void setAccuracyHighAccuracyUnknown(long accuracyHighAccuracyUnknown) {
-		this.accuracyHighAccuracyUnknown = accuracyHighAccuracyUnknown;
+	public int getCompression() {
+		return compression;
 	}
 
-	public long getAccuracyHighAccuracyStill() {
-		return accuracyHighAccuracyStill;
+	// 0: write plain .gpx / .kml, 1 (fastest) - 9 (smallest): write .gpx.gz / .kmz, compressed
+	// on a separate thread
+	public void setCompression(int compression) {
+		this.compression = Math.max(0, Math.min(9, compression));
 	}
 
-	public void setAccuracyHighAccuracyStill(long accuracyHighAccuracyStill) {
-		this.accuracyHighAccuracyStill = accuracyHighAccuracyStill;
+	public long getSimplifyTolerance() {
+		return simplifyTolerance;
 	}
 
-	public long getAccuracyHighAccuracyFoot() {
-		return accuracyHighAccuracyFoot;
+	// > 0: simplify tracks so no point is further than this many meters from the output
+	public void setSimplifyTolerance(long simplifyTolerance) {
+		this.simplifyTolerance = simplifyTolerance;
 	}
-
-	public void setAccuracyHighAccuracyFoot(long accuracyHighAccuracyFoot) {
-		this.accuracyHighAccuracyFoot = accuracyHighAccuracyFoot;
+	
+	// points going into and coming out of simplification during the last export
+	public long getSimplifiedPointsIn() {
+		return simplifiedPointsIn;
 	}
 
-	public long getAccuracyHighAccuracyBicycle() {
-		return accuracyHighAccuracyBicycle;
+	public long getSimplifiedPointsOut() {
+		return simplifiedPointsOut;
 	}
-
-	public void setAccuracyHighAccuracyBicycle(long accuracyHighAccuracyBicycle) {
-		this.accuracyHighAccuracyBicycle = accuracyHighAccuracyBicycle;
+	
+	public Timings getTimings() {
+		return timings;
 	}
 
-	public long getAccuracyHighAccuracyVehicle() {
-		return accuracyHighAccuracyVehicle;
+	public AccuracyFilter getAccuracyFilter() {
+		return accuracyFilter;
 	}
 
-	public void setAccuracyHighAccuracyVehicle(long accuracyHighAccuracyVehicle) {
-		this.accuracyHighAccuracyVehicle = accuracyHighAccuracyVehicle;
+	public void setAccuracyFilter(AccuracyFilter accuracyFilter) {
+		this.accuracyFilter = accuracyFilter;
 	}
 
 	public long getTrackMinPoints() {
@@ -457,35 +943,595 @@ public class Exporter {
 		this.trackMinDistance = trackMinDistance;
 	}
 
+	// Writers encode straight into ExportOutput's buffer, point() doesn't allocate
 	private abstract class FormatWriter {
-		protected OutputStream os = null;
+		protected ExportOutput out = null;
+		
+		public FormatWriter(ExportOutput out) {
+			this.out = out;
+		}
+		
+		protected void write(String string) throws IOException {
+			out.write(string);
+		}
+		
+		public abstract void header(String exporter) throws IOException;
+		public abstract void startSegment() throws IOException;
+		public abstract void point(long time, double latitude, double longitude) throws IOException;
+		public abstract void endSegment() throws IOException;
+		public abstract void footer() throws IOException;
+		
+		// continue as if tracksStarted tracks had been started and the last point written was
+		// at lastLatitude/lastLongitude, for writers formatting a part of the document
+		public void resume(int tracksStarted, boolean hasLastPoint, double lastLatitude, double lastLongitude) {			
+		}
+	}
+	
+	// Receives the track structure decided by the export loop
+	private interface TrackSink {
+		public void startTrack() throws IOException;
+		public void point(long time, double latitude, double longitude) throws IOException;
+		// the current track will be kept, its output may be released
+		public void commitTrack() throws IOException;
+		// end of a kept track
+		public void endTrack() throws IOException;
+		// drop the current track
+		public void discardTrack() throws IOException;
+	}
+	
+	// Statistics of one output part, and the writer state needed to continue it
+	private static class PartInfo {
+		public final int index;
+		public long timeFirst = -1;
+		public long timeLast = -1;
+		public int tracks = 0;
+		public long points = 0;
+		public long bytes = 0;
+		public int tracksStarted = 0;
+		public boolean hasLastPoint = false;
+		public double lastLatitude = 0;
+		public double lastLongitude = 0;
+		
+		public PartInfo(int index) {
+			this.index = index;
+		}
+		
+		public String serialize() {
+			return String.format(Locale.ENGLISH, "%d,%d,%d,%d,%d,%d,%d,%d,%d,%d", 
+					index, timeFirst, timeLast, tracks, points, bytes, tracksStarted, hasLastPoint ? 1 : 0, 
+					Double.doubleToLongBits(lastLatitude), Double.doubleToLongBits(lastLongitude)
+			);
+		}
+		
+		public static PartInfo deserialize(String s) {
+			String[] f = s.split(",");
+			PartInfo info = new PartInfo(Integer.parseInt(f[0], 10));
+			info.timeFirst = Long.parseLong(f[1], 10);
+			info.timeLast = Long.parseLong(f[2], 10);
+			info.tracks = Integer.parseInt(f[3], 10);
+			info.points = Long.parseLong(f[4], 10);
+			info.bytes = Long.parseLong(f[5], 10);
+			info.tracksStarted = Integer.parseInt(f[6], 10);
+			info.hasLastPoint = f[7].equals("1");
+			info.lastLatitude = Double.longBitsToDouble(Long.parseLong(f[8], 10));
+			info.lastLongitude = Double.longBitsToDouble(Long.parseLong(f[9], 10));
+			return info;
+		}
+	}
+	
+	// Where an interrupted export continues: at row (rowTime, rowId), the first of a track,
+	// with the parts before part complete. Part is either started over (bytes < 0) or continued
+	// after its first bytes. rows is the number of rows exported before, for progress.
+	private static class Checkpoint {
+		private static final String PREFS_NAME = "export_checkpoint";
+		
+		public final String settings;
+		public final String base;
+		public long rowTime = -1;
+		public long rowId = -1;
+		public int rows = 0;
+		public PartInfo part = null;
+		public long bytes = -1;
+		public final ArrayList<PartInfo> closed = new ArrayList<PartInfo>();
+		
+		public Checkpoint(String settings, String base) {
+			this.settings = settings;
+			this.base = base;
+		}
+		
+		public void set(long rowTime, long rowId, int rows, PartInfo part, long bytes) {
+			this.rowTime = rowTime;
+			this.rowId = rowId;
+			this.rows = rows;
+			this.part = part;
+			this.bytes = bytes;
+		}
+		
+		// null if there is none
+		public static Checkpoint load(Context context) {
+			SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+			String settings = prefs.getString("settings", null);
+			String base = prefs.getString("base", null);
+			String part = prefs.getString("part", null);
+			if ((settings == null) || (base == null) || (part == null)) return null;
+			
+			Checkpoint checkpoint = new Checkpoint(settings, base);
+			try {
+				checkpoint.rowTime = prefs.getLong("rowTime", -1);
+				checkpoint.rowId = prefs.getLong("rowId", -1);
+				checkpoint.rows = prefs.getInt("rows", 0);
+				checkpoint.bytes = prefs.getLong("bytes", -1);
+				checkpoint.part = PartInfo.deserialize(part);
+				for (String closed : prefs.getString("closed", "").split(";")) {
+					if (closed.length() > 0) checkpoint.closed.add(PartInfo.deserialize(closed));
+				}
+			} catch (Exception e) {
+				return null;
+			}
+			return (checkpoint.rowTime >= 0) ? checkpoint : null;
+		}
+		
+		public void save(Context context) {
+			String closed = "";
+			for (PartInfo info : this.closed) {
+				if (closed.length() > 0) closed += ";";
+				closed += info.serialize();
+			}
+			context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit().
+				putString("settings", settings).
+				putString("base", base).
+				putLong("rowTime", rowTime).
+				putLong("rowId", rowId).
+				putInt("rows", rows).
+				putLong("bytes", bytes).
+				putString("part", part.serialize()).
+				putString("closed", closed).
+				commit();
+		}
+		
+		public static void clear(Context context) {
+			context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit().clear().commit();
+		}
+	}
+	
+	// Where the parts of an export go, part 0 first
+	private interface OutputFactory {
+		public OutputStream openPart(int index) throws IOException;
+		// parts can be continued after their first bytes, see resumePart()
+		public boolean isResumable();
+		// reopen an unfinished part, continuing after its first bytes
+		public OutputStream resumePart(int index, long bytes) throws IOException;
+		// part complete, os has been flushed but not closed
+		public void closePart(OutputStream os, PartInfo info) throws IOException;
+		// part failed or not needed
+		public void abortPart(OutputStream os, int index);
+	}
+	
+	private static class CountingOutputStream extends OutputStream {
+		private final OutputStream os;
+		private final PartInfo info;
+		public long time = 0; // ns spent in os
+		
+		public CountingOutputStream(OutputStream os, PartInfo info) {
+			this.os = os;
+			this.info = info;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			long now = System.nanoTime();
+			os.write(b);
+			time += System.nanoTime() - now;
+			info.bytes++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			long now = System.nanoTime();
+			os.write(b, off, len);
+			time += System.nanoTime() - now;
+			info.bytes += len;
+		}
+
+		@Override
+		public void flush() throws IOException {
+			long now = System.nanoTime();
+			os.flush();
+			time += System.nanoTime() - now;
+		}
+	}
+	
+	// One output part: a complete, well-formed file with its own header and footer. With 
+	// multiple threads, the size of chunks still being formatted is estimated. Between tracks
+	// it can be flushed to continue later, with a new Part for the same info.
+	private class Part {
+		public final OutputStream os;
+		public final PartInfo info;
+		public final ExportOutput out;
+		public final FormatWriter writer;
+		public final ParallelSink parallel;
+		public final TrackSink sink;
+		private final CountingOutputStream counting;
+		
+		// exporter == null: continue the part as it was flushed, os is positioned at info.bytes
+		public Part(PartInfo info, OutputStream os, String exporter) throws IOException {
+			this.os = os;
+			this.info = info;
+			counting = new CountingOutputStream(os, info);
+			out = new ExportOutput(counting);
+			writer = newWriter(out);
+			if (exporter != null) {
+				writer.header(exporter);
+			} else {
+				writer.resume(info.tracksStarted, info.hasLastPoint, info.lastLatitude, info.lastLongitude);
+			}
+			if (threads > 1) {
+				out.flush();
+				parallel = new ParallelSink(counting, threads, info);
+				sink = parallel;
+			} else {
+				parallel = null;
+				sink = new SequentialSink(writer, out);
+			}
+		}
+		
+		// after the last track
+		public void finish() throws IOException {
+			if (parallel != null) parallel.flush();
+			writer.footer();
+			out.flush();
+		}
+		
+		// between tracks, writes out everything so far
+		public void flush() throws IOException {
+			if (parallel != null) parallel.flush();
+			out.flush();
+			os.flush();
+		}
+		
+		public void shutdown() {
+			if (parallel != null) parallel.shutdown();
+			writeTime += counting.time;
+			counting.time = 0;
+		}
+		
+		public long getEstimatedBytes() {
+			return info.bytes + ((parallel != null) ? parallel.getEstimatedPendingBytes() : 0);
+		}
+	}
+	
+	// Passes tracks on to the current part, and keeps the part's statistics of kept tracks
+	private static class PartSink implements TrackSink {
+		private Part part;
+		private long trackPoints = 0;
+		private long trackTimeFirst = -1;
+		private long trackTimeLast = -1;
+		
+		public PartSink(Part part) {
+			this.part = part;
+		}
+		
+		// only between tracks
+		public void setPart(Part part) {
+			this.part = part;
+		}
+
+		@Override
+		public void startTrack() throws IOException {
+			trackPoints = 0;
+			trackTimeFirst = -1;
+			trackTimeLast = -1;
+			part.info.tracksStarted++;
+			part.sink.startTrack();
+		}
+
+		@Override
+		public void point(long time, double latitude, double longitude) throws IOException {
+			if (trackTimeFirst == -1) trackTimeFirst = time;
+			trackTimeLast = time;
+			trackPoints++;
+			part.info.hasLastPoint = true;
+			part.info.lastLatitude = latitude;
+			part.info.lastLongitude = longitude;
+			part.sink.point(time, latitude, longitude);
+		}
+
+		@Override
+		public void commitTrack() throws IOException {
+			part.sink.commitTrack();
+		}
+
+		@Override
+		public void endTrack() throws IOException {
+			part.sink.endTrack();
+			PartInfo info = part.info;
+			if (trackPoints > 0) {
+				if (info.timeFirst == -1) info.timeFirst = trackTimeFirst;
+				info.timeLast = trackTimeLast;
+			}
+			info.tracks++;
+			info.points += trackPoints;
+		}
+
+		@Override
+		public void discardTrack() throws IOException {
+			part.sink.discardTrack();
+		}
+	}
+	
+	private static class SequentialSink implements TrackSink {
+		private final FormatWriter writer;
+		private final ExportOutput out;
+		
+		public SequentialSink(FormatWriter writer, ExportOutput out) {
+			this.writer = writer;
+			this.out = out;
+		}
+
+		@Override
+		public void startTrack() throws IOException {
+			out.mark();
+			writer.startSegment();
+		}
+
+		@Override
+		public void point(long time, double latitude, double longitude) throws IOException {
+			writer.point(time, latitude, longitude);
+		}
+
+		@Override
+		public void commitTrack() throws IOException {
+			out.commit();
+		}
+
+		@Override
+		public void endTrack() throws IOException {
+			out.commit();
+			writer.endSegment();
+		}
+
+		@Override
+		public void discardTrack() throws IOException {
+			out.discard();
+		}
+	}
+	
+	// Passes points through a TrackSimplifier. Its pending points are passed on before a track
+	// ends, and dropped with a discarded track.
+	private static class SimplifyingSink implements TrackSink, TrackSimplifier.OnPointListener {
+		private final TrackSink sink;
+		private final TrackSimplifier simplifier;
+		
+		public SimplifyingSink(TrackSink sink, double tolerance) {
+			this.sink = sink;
+			this.simplifier = new TrackSimplifier(tolerance, this);
+		}
+		
+		public TrackSimplifier getSimplifier() {
+			return simplifier;
+		}
+
+		@Override
+		public void startTrack() throws IOException {
+			simplifier.clear();
+			sink.startTrack();
+		}
+
+		@Override
+		public void point(long time, double latitude, double longitude) throws IOException {
+			simplifier.add(time, latitude, longitude);
+		}
+
+		@Override
+		public void onPoint(long time, double latitude, double longitude) throws IOException {
+			sink.point(time, latitude, longitude);
+		}
+
+		@Override
+		public void commitTrack() throws IOException {
+			sink.commitTrack();
+		}
+
+		@Override
+		public void endTrack() throws IOException {
+			simplifier.finish();
+			sink.endTrack();
+		}
+
+		@Override
+		public void discardTrack() throws IOException {
+			simplifier.clear();
+			sink.discardTrack();
+		}
+	}
+	
+	// Records the decided track structure into chunks of operations, formats the chunks on a
+	// thread pool and writes the results to the stream in order. A chunk is only cut where no
+	// track is undecided, so discarding never crosses chunks. Writer state that carries over
+	// (track numbering, KML duplicate suppression) is recorded with the chunk and at every
+	// discard, which keeps the output identical to SequentialSink's.
+	private class ParallelSink implements TrackSink {
+		private static final int CHUNK_OPS = 16 * 1024;
+		
+		private static final byte OP_START = 0;
+		private static final byte OP_POINT = 1;
+		private static final byte OP_END = 2;
+		private static final byte OP_STATE = 3;
 		
-		public FormatWriter(OutputStream os) {
+		private class Chunk implements Callable<byte[]> {
+			public byte[] op = new byte[CHUNK_OPS];
+			public long[] time = new long[CHUNK_OPS];
+			public double[] latitude = new double[CHUNK_OPS];
+			public double[] longitude = new double[CHUNK_OPS];
+			public int count = 0;
+			
+			private void add(byte op, long time, double latitude, double longitude) {
+				if (count == this.op.length) {
+					int size = count * 2;
+					byte[] newOp = new byte[size]; System.arraycopy(this.op, 0, newOp, 0, count); this.op = newOp;
+					long[] newTime = new long[size]; System.arraycopy(this.time, 0, newTime, 0, count); this.time = newTime;
+					double[] newLatitude = new double[size]; System.arraycopy(this.latitude, 0, newLatitude, 0, count); this.latitude = newLatitude;
+					double[] newLongitude = new double[size]; System.arraycopy(this.longitude, 0, newLongitude, 0, count); this.longitude = newLongitude;
+				}
+				this.op[count] = op;
+				this.time[count] = time;
+				this.latitude[count] = latitude;
+				this.longitude[count] = longitude;
+				count++;
+			}
+			
+			// time holds the number of tracks started, a NaN latitude means no last point
+			public void addState(int tracksStarted, boolean hasLastPoint, double lastLatitude, double lastLongitude) {
+				add(OP_STATE, tracksStarted, hasLastPoint ? lastLatitude : Double.NaN, lastLongitude);
+			}
+
+			@Override
+			public byte[] call() throws Exception {
+				long start = System.nanoTime();
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream(count * 64);
+				ExportOutput out = new ExportOutput(bytes);
+				FormatWriter writer = newWriter(out);
+				for (int i = 0; i < count; i++) {
+					switch (op[i]) {
+					case OP_START: writer.startSegment(); break;
+					case OP_POINT: writer.point(time[i], latitude[i], longitude[i]); break;
+					case OP_END: writer.endSegment(); break;
+					case OP_STATE: writer.resume((int)time[i], !Double.isNaN(latitude[i]), latitude[i], longitude[i]); break;
+					}
+				}
+				out.flush();
+				byte[] ret = bytes.toByteArray();
+				formatTime.addAndGet(System.nanoTime() - start);
+				return ret;
+			}
+		}
+		
+		private final OutputStream os;
+		private final int maxPending;
+		private final ExecutorService executor;
+		private final LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>(); 
+		private final LinkedList<Integer> pendingOps = new LinkedList<Integer>();
+		private long opsInFlight = 0;
+		private long opsWritten = 0;
+		private long bytesWritten = 0;
+		
+		private Chunk chunk = null;
+		private int trackStartOp = -1;
+		
+		private int tracksStarted = 0;
+		private boolean hasLastPoint = false;
+		private double lastLatitude = 0;
+		private double lastLongitude = 0;
+		
+		// state: the writer state to start from
+		public ParallelSink(OutputStream os, int threads, PartInfo state) {
 			this.os = os;
+			this.maxPending = threads * 2;
+			tracksStarted = state.tracksStarted;
+			hasLastPoint = state.hasLastPoint;
+			lastLatitude = state.lastLatitude;
+			lastLongitude = state.lastLongitude;
+			executor = Executors.newFixedThreadPool(threads);
+			newChunk();
+		}
+		
+		private void newChunk() {
+			chunk = new Chunk();
+			chunk.addState(tracksStarted, hasLastPoint, lastLatitude, lastLongitude);
+		}
+		
+		private void writeNext() throws IOException {
+			try {
+				long now = System.nanoTime();
+				byte[] bytes = pending.removeFirst().get();
+				formatWaitTime += System.nanoTime() - now;
+				int ops = pendingOps.removeFirst();
+				os.write(bytes);
+				opsInFlight -= ops;
+				opsWritten += ops;
+				bytesWritten += bytes.length;
+			} catch (InterruptedException e) {
+				throw new IOException(e.toString());
+			} catch (ExecutionException e) {
+				throw new IOException(e.getCause() != null ? e.getCause().toString() : e.toString());
+			}
 		}
 		
-		protected void write(String string) throws UnsupportedEncodingException, IOException {
-			os.write(string.getBytes("US-ASCII"));
+		private void submit() throws IOException {
+			pending.add(executor.submit(chunk));
+			pendingOps.add(chunk.count);
+			opsInFlight += chunk.count;
+			while (pending.size() > maxPending) writeNext();
+			newChunk();
 		}
 		
-		public abstract void header(String exporter) throws UnsupportedEncodingException, IOException;
-		public abstract void startSegment() throws UnsupportedEncodingException, IOException;
-		public abstract void point(Database.Location loc) throws UnsupportedEncodingException, IOException;
-		public abstract void endSegment() throws UnsupportedEncodingException, IOException;
-		public abstract void footer() throws UnsupportedEncodingException, IOException;
+		private void cutIfFull() throws IOException {
+			if ((trackStartOp < 0) && (chunk.count >= CHUNK_OPS)) submit();
+		}
+
+		@Override
+		public void startTrack() throws IOException {
+			trackStartOp = chunk.count;
+			chunk.add(OP_START, 0, 0, 0);
+			tracksStarted++;
+		}
+
+		@Override
+		public void point(long time, double latitude, double longitude) throws IOException {
+			chunk.add(OP_POINT, time, latitude, longitude);
+			hasLastPoint = true;
+			lastLatitude = latitude;
+			lastLongitude = longitude;
+		}
+
+		@Override
+		public void commitTrack() throws IOException {
+			trackStartOp = -1;
+			cutIfFull();
+		}
+
+		@Override
+		public void endTrack() throws IOException {
+			trackStartOp = -1;
+			chunk.add(OP_END, 0, 0, 0);
+			cutIfFull();
+		}
+
+		@Override
+		public void discardTrack() throws IOException {
+			if (trackStartOp >= 0) {
+				chunk.count = trackStartOp;
+				chunk.addState(tracksStarted, hasLastPoint, lastLatitude, lastLongitude);
+			}
+			trackStartOp = -1;
+			cutIfFull();
+		}
+		
+		// size of the output recorded but not written yet, from the average so far
+		public long getEstimatedPendingBytes() {
+			long ops = opsInFlight + chunk.count;
+			if (opsWritten == 0) return ops * 64;
+			return ops * bytesWritten / opsWritten;
+		}
+		
+		// writes out everything recorded, recording may continue after
+		public void flush() throws IOException {
+			if (chunk.count > 0) submit();
+			while (pending.size() > 0) writeNext();
+		}
+		
+		public void shutdown() {
+			executor.shutdownNow();
+		}
 	}
 	
 	private class GPXWriter extends FormatWriter {
-		protected SimpleDateFormat simpleDateFormat = null;
-				
-		public GPXWriter(OutputStream os) {
-			super(os);
-			simpleDateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.ENGLISH);
-			simpleDateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));			
+		public GPXWriter(ExportOutput out) {
+			super(out);
 		}
 
 		@Override
-		public void header(String exporter) throws UnsupportedEncodingException, IOException {
+		public void header(String exporter) throws IOException {
 			write(
    	    		"<?xml version=\"1.0\"?>\r\n" +
    	    		"<gpx version=\"1.0\" creator=\"" + exporter + "\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" xmlns=\"http://www.topografix.com/GPX/1/0\" xsi:schemaLocation=\"http://www.topografix.com/GPX/1/0 http://www.topografix.com/GPX/1/0/gpx.xsd\">\r\n" +
@@ -494,26 +1540,26 @@ public class Exporter {
 		}
 
 		@Override
-		public void startSegment() throws UnsupportedEncodingException, IOException {
+		public void startSegment() throws IOException {
 	    	write(
    				"    <trkseg>\r\n"
 	    	);
 		}
 
 		@Override
-		public void point(Location loc) throws UnsupportedEncodingException, IOException {
-			write(String.format(Locale.ENGLISH, "      <trkpt lat=\"%.5f\" lon=\"%.5f\"><time>%s</time></trkpt>\r\n", loc.getLatitude(), loc.getLongitude(), simpleDateFormat.format(new Date(loc.getTime()))));
+		public void point(long time, double latitude, double longitude) throws IOException {
+			out.write("      <trkpt lat=\"").writeFixed(latitude, 5).write("\" lon=\"").writeFixed(longitude, 5).write("\"><time>").writeTime(time).write("</time></trkpt>\r\n");
 		}		
 
 		@Override
-		public void endSegment() throws UnsupportedEncodingException, IOException {
+		public void endSegment() throws IOException {
 			write(
 				"    </trkseg>\r\n"
 			);
 		}
 
 		@Override
-		public void footer() throws UnsupportedEncodingException, IOException {
+		public void footer() throws IOException {
 	    	write(
     			"  </trk>\r\n" +
     			"</gpx>\r\n"
@@ -523,14 +1569,18 @@ public class Exporter {
 	
 	private class KMLWriter extends FormatWriter {
 		protected int trackIndex = 1;
-		protected String last = "";
 		
-		public KMLWriter(OutputStream os) {
-			super(os);			
+		// last point written, in ExportOutput.toFixed units: equal means it would print the same
+		protected boolean hasLast = false;
+		protected long lastLatitude = 0;
+		protected long lastLongitude = 0;
+		
+		public KMLWriter(ExportOutput out) {
+			super(out);			
 		}
 		
 		@Override
-		public void header(String exporter)	throws UnsupportedEncodingException, IOException {
+		public void header(String exporter)	throws IOException {
 			write(
 				"<?xml version=\"1.0\" encoding=\"UTF-8\"?>\r\n" +
 				"<kml xmlns=\"http://www.opengis.net/kml/2.2\"  xmlns:gx=\"http://www.google.com/kml/ext/2.2\" xmlns:kml=\"http://www.opengis.net/kml/2.2\"\r\n" +    
@@ -550,13 +1600,17 @@ public class Exporter {
 		}
 
 		@Override
-		public void startSegment() throws UnsupportedEncodingException,	IOException {
+		public void startSegment() throws IOException {
 			write(
 					"      <Placemark>\r\n" +
 					"        <visibility>1</visibility>\r\n" +            
 					"        <open>1</open>\r\n" + 
 					"        <styleUrl>#red</styleUrl>\r\n" +
-					"        <name>Track " + String.valueOf(trackIndex) + "</name>\r\n" +
+					"        <name>Track "
+			);
+			out.writeLong(trackIndex);
+			write(
+					"</name>\r\n" +
 					"        <description></description>\r\n" +
 					"        <LineString>\r\n" +
 					"          <extrude>true</extrude>\r\n" +
@@ -568,16 +1622,29 @@ public class Exporter {
 		}
 
 		@Override
-		public void point(Location loc) throws UnsupportedEncodingException, IOException {
-			String now = String.format(Locale.ENGLISH, "            %.5f,%.5f\r\n", loc.getLongitude(), loc.getLatitude());
-			if (!now.equals(last)) {
-				write(now);
-				last = now;
+		public void resume(int tracksStarted, boolean hasLastPoint, double lastLatitude, double lastLongitude) {
+			trackIndex = tracksStarted + 1;
+			hasLast = hasLastPoint;
+			if (hasLastPoint) {
+				this.lastLatitude = ExportOutput.toFixed(lastLatitude, 5);
+				this.lastLongitude = ExportOutput.toFixed(lastLongitude, 5);
+			}
+		}
+
+		@Override
+		public void point(long time, double latitude, double longitude) throws IOException {
+			long lat = ExportOutput.toFixed(latitude, 5);
+			long lon = ExportOutput.toFixed(longitude, 5);
+			if (!hasLast || (lat != lastLatitude) || (lon != lastLongitude)) {
+				out.write("            ").writeFixed(longitude, 5).write(',').writeFixed(latitude, 5).write("\r\n");
+				hasLast = true;
+				lastLatitude = lat;
+				lastLongitude = lon;
 			}
 		}
 
 		@Override
-		public void endSegment() throws UnsupportedEncodingException, IOException {
+		public void endSegment() throws IOException {
 			write(
 				"          </coordinates>\r\n" +
 				"        </LineString>\r\n" +
@@ -586,7 +1653,7 @@ public class Exporter {
 		}
 
 		@Override
-		public void footer() throws UnsupportedEncodingException, IOException {
+		public void footer() throws IOException {
 			write(
 				"    </Folder>\r\n" +
 			    "  </Document>\r\n" +
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2013 Jorrit "Chainfire" Jongma
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.chainfire.geolog.data;
+
+// Distances in meters between WGS84 coordinates in degrees, on a spherical earth.
+// distance() uses the haversine formula, which unlike the law of cosines stays accurate at
+// short distances. distanceFast() is the equirectangular approximation: no trig at all when
+// the cosine of the latitude is passed in (see cosLatitude()), and within 0.1% of distance()
+// for points up to some tens of kilometers apart, away from the poles. Use it where many
+// nearby points are compared, like consecutive points of a track.
+public class Geodesy {
+	// mean earth radius
+	public static final double EARTH_RADIUS = 6371008.8;
+
+	private static final double RAD = Math.PI / 180.0;
+
+	public static double distance(double latA, double lonA, double latB, double lonB) {
+		double sinLat = Math.sin((latB - latA) * RAD * 0.5);
+		double sinLon = Math.sin((lonB - lonA) * RAD * 0.5);
+		double h = sinLat * sinLat + Math.cos(latA * RAD) * Math.cos(latB * RAD) * sinLon * sinLon;
+		if (h > 1.0) h = 1.0;
+		return 2.0 * EARTH_RADIUS * Math.asin(Math.sqrt(h));
+	}
+
+	public static double cosLatitude(double latitude) {
+		return Math.cos(latitude * RAD);
+	}
+
+	// cosLatitude: cosLatitude() of a latitude between (or near) latA and latB
+	public static double distanceFast(double latA, double lonA, double latB, double lonB, double cosLatitude) {
+		double dLat = latB - latA;
+		double dLon = lonB - lonA;
+		// shortest way around
+		if (dLon > 180.0) dLon -= 360.0;
+		else if (dLon < -180.0) dLon += 360.0;
+		double x = dLon * cosLatitude;
+		return EARTH_RADIUS * RAD * Math.sqrt(x * x + dLat * dLat);
+	}
+
+	public static double distanceFast(double latA, double lonA, double latB, double lonB) {
+		return distanceFast(latA, lonA, latB, lonB, cosLatitude((latA + latB) * 0.5));
+	}
+
+	// Distances between consecutive points: into[i] = distance from point offset + i to
+	// offset + i + 1, for count points (so count - 1 distances). Equirectangular, with the
+	// cosine of every latitude computed once and averaged per pair. Returns the total.
+	public static double distances(double[] latitudes, double[] longitudes, int offset, int count, double[] into) {
+		double total = 0;
+		if (count < 2) return total;
+		double cosPrevious = cosLatitude(latitudes[offset]);
+		for (int i = 0; i < count - 1; i++) {
+			int a = offset + i;
+			double cosNext = cosLatitude(latitudes[a + 1]);
+			double d = distanceFast(latitudes[a], longitudes[a], latitudes[a + 1], longitudes[a + 1], (cosPrevious + cosNext) * 0.5);
+			if (into != null) into[i] = d;
+			total += d;
+			cosPrevious = cosNext;
+		}
+		return total;
+	}
+
+	// Length of the path through count points starting at offset
+	public static double pathLength(double[] latitudes, double[] longitudes, int offset, int count) {
+		return distances(latitudes, longitudes, offset, count, null);
+	}
+}
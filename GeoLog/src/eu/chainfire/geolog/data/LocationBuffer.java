@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2013 Jorrit "Chainfire" Jongma
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.chainfire.geolog.data;
+
+import java.util.Locale;
+
+import eu.chainfire.geolog.Debug;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Handler;
+import android.os.SystemClock;
+
+// Write-behind queue for incoming locations. Instead of one implicit transaction (and fsync)
+// per fix, locations are collected and committed in a single transaction once maxPoints have
+// been queued or the oldest queued location is maxAge ms old, whichever comes first.
+// Not thread-safe, all calls are expected on the thread owning the passed Handler.
+// Also schedules the WAL checkpoint: CHECKPOINT_DELAY ms after the last commit the writer is
+// considered idle, so the checkpoint doesn't compete with ingestion.
+public class LocationBuffer {
+	public static final int DEFAULT_MAX_POINTS = 30;
+	public static final long DEFAULT_MAX_AGE = 60 * 1000;
+	public static final long CHECKPOINT_DELAY = 10 * 1000;
+
+	private final Database.Helper helper;
+	private final Handler handler;
+	private final int maxPoints;
+	private final long maxAge;
+
+	// pooled, reused after every commit
+	private final Database.Location[] pending;
+	private int count = 0;
+	private long firstQueued = 0;
+
+	private long statCommits = 0;
+	private long statRows = 0;
+	private int statMaxBatch = 0;
+	private long statTotalLatency = 0;
+	private long statMaxLatency = 0;
+
+	public LocationBuffer(Database.Helper helper, Handler handler) {
+		this(helper, handler, DEFAULT_MAX_POINTS, DEFAULT_MAX_AGE);
+	}
+
+	public LocationBuffer(Database.Helper helper, Handler handler, int maxPoints, long maxAge) {
+		this.helper = helper;
+		this.handler = handler;
+		this.maxPoints = Math.max(1, maxPoints);
+		this.maxAge = maxAge;
+
+		pending = new Database.Location[this.maxPoints];
+		for (int i = 0; i < pending.length; i++) {
+			pending[i] = new Database.Location();
+		}
+	}
+
+	private Runnable flushRunnable = new Runnable() {
+		@Override
+		public void run() {
+			flush();
+		}
+	};
+
+	private Runnable checkpointRunnable = new Runnable() {
+		@Override
+		public void run() {
+			helper.checkpoint();
+		}
+	};
+
+	public void add(Database.Location location) {
+		if (count == 0) {
+			firstQueued = SystemClock.elapsedRealtime();
+			// postDelayed doesn't run while the device is in deep sleep, so the age is also
+			// checked on every add
+			if (handler != null) handler.postDelayed(flushRunnable, maxAge);
+		}
+
+		pending[count++].copyFrom(location);
+
+		long age = SystemClock.elapsedRealtime() - firstQueued;
+		if ((count >= maxPoints) || (age >= maxAge) || (age < 0)) {
+			flush();
+		}
+	}
+
+	public int size() {
+		return count;
+	}
+
+	public void flush() {
+		if (handler != null) handler.removeCallbacks(flushRunnable);
+		if (count == 0) return;
+
+		long start = SystemClock.elapsedRealtime();
+
+		SQLiteDatabase db = helper.getWritableDatabase();
+		helper.acquireLock();
+		try {
+			db.beginTransaction();
+			try {
+				for (int i = 0; i < count; i++) {
+					pending[i].saveToDatabase(helper, false);
+				}
+				db.setTransactionSuccessful();
+			} finally {
+				db.endTransaction();
+			}
+		} finally {
+			helper.releaseLock();
+		}
+		
+		if (handler != null) {
+			handler.removeCallbacks(checkpointRunnable);
+			handler.postDelayed(checkpointRunnable, CHECKPOINT_DELAY);
+		}
+
+		long lastId = pending[count - 1].getId();
+		helper.notifyUri(LogsProvider.URILocations());
+		helper.notifyBroadcast(Database.Location.TABLE_NAME, lastId);
+
+		long latency = SystemClock.elapsedRealtime() - start;
+		statCommits++;
+		statRows += count;
+		statMaxBatch = Math.max(statMaxBatch, count);
+		statTotalLatency += latency;
+		statMaxLatency = Math.max(statMaxLatency, latency);
+
+		Debug.log(Debug.DATABASE, Debug.INFO, "Committed %d locations in %dms (last id %d)", count, latency, lastId);
+
+		count = 0;
+	}
+
+	public long getCommitCount() {
+		return statCommits;
+	}
+
+	public long getRowCount() {
+		return statRows;
+	}
+
+	public int getMaxBatchSize() {
+		return statMaxBatch;
+	}
+
+	public float getAverageBatchSize() {
+		return (statCommits == 0) ? 0 : (float)statRows / (float)statCommits;
+	}
+
+	public long getMaxLatency() {
+		return statMaxLatency;
+	}
+
+	public float getAverageLatency() {
+		return (statCommits == 0) ? 0 : (float)statTotalLatency / (float)statCommits;
+	}
+
+	public String getStatistics() {
+		return String.format(Locale.ENGLISH, "commits=%d rows=%d batch[avg=%.1f max=%d] latency[avg=%.1fms max=%dms]",
+				statCommits, statRows, getAverageBatchSize(), statMaxBatch, getAverageLatency(), statMaxLatency);
+	}
+}
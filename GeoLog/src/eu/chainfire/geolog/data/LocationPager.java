@@ -0,0 +1,325 @@
+/*
+ * Copyright (C) 2013 Jorrit "Chainfire" Jongma
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.chainfire.geolog.data;
+
+import java.util.ArrayList;
+
+import eu.chainfire.geolog.Debug;
+
+import android.database.Cursor;
+import android.os.AsyncTask;
+
+// Read-only view of the locations table, newest first, for the log list. Rows are fetched in
+// pages of PAGE_SIZE by _id keyset (no OFFSET, no COUNT), the next page is fetched in the
+// background once the list gets within PREFETCH rows of the end. Pages more than KEEP_PAGES
+// away from the last accessed page are dropped, only their _id range is kept so exactly the
+// same rows can be fetched again when scrolled back to. Memory use therefore depends on
+// PAGE_SIZE and KEEP_PAGES, not on the size of the table.
+// New rows are picked up through update(), which only fetches rows newer than the newest
+// row known and puts them in front, so refreshing costs O(new rows).
+// Not thread-safe, all calls are expected on the UI thread.
+public class LocationPager {
+	public interface OnChangeListener {
+		// inserted: number of rows put in front of the existing rows, -1 if the list was replaced
+		public void onPagerChanged(LocationPager pager, int inserted);
+	}
+
+	public static final int PAGE_SIZE = 100;
+	public static final int PREFETCH = PAGE_SIZE / 4;
+	public static final int KEEP_PAGES = 2;
+
+	private static class Page {
+		public int offset = 0; // position of the first row
+		public long maxId = -1;
+		public long minId = -1;
+		public int size = 0;
+		public Database.Location[] rows = null; // null when dropped
+		public boolean loading = false;
+	}
+
+	private final Database.Helper helper;
+	private final String[] projection;
+	private OnChangeListener listener;
+
+	private final ArrayList<Page> pages = new ArrayList<Page>();
+	private int count = 0;
+	private boolean loaded = false;
+	private boolean complete = false;
+	private boolean loadingNext = false;
+	private boolean loadingNew = false;
+	private boolean pendingNew = false;
+
+	// bumped by reset(), results of loads started before are discarded
+	private int generation = 0;
+
+	public LocationPager(Database.Helper helper, String[] projection, OnChangeListener listener) {
+		this.helper = helper;
+		this.projection = projection;
+		this.listener = listener;
+		loadNext(false);
+	}
+
+	// number of rows fetched so far, grows as the list is scrolled
+	public int getCount() {
+		return count;
+	}
+
+	// true once the first page has been fetched
+	public boolean isLoaded() {
+		return loaded;
+	}
+
+	// true once the oldest row has been fetched
+	public boolean isComplete() {
+		return complete;
+	}
+
+	// _id of the newest row known, -1 if none
+	public long getNewestId() {
+		return (pages.size() > 0) ? pages.get(0).maxId : -1;
+	}
+
+	// returns null if the row's page is (re)loading
+	public Database.Location get(int position) {
+		if ((position < 0) || (position >= count)) return null;
+
+		int pageIndex = findPage(position);
+		access(pageIndex);
+
+		if (position >= count - PREFETCH) loadNext(false);
+
+		Page page = pages.get(pageIndex);
+		if (page.rows == null) return null;
+		return page.rows[position - page.offset];
+	}
+
+	// Starts over from the newest row. The current rows stay available until the first new
+	// page has arrived, so the list doesn't flash empty.
+	public void reset() {
+		generation++;
+		loadingNext = false;
+		loadingNew = false;
+		pendingNew = false;
+		loadNext(true);
+	}
+
+	// Call when the table changed, id being the row concerned (as in Database.Helper's
+	// broadcast). Inserts after the newest known row are fetched incrementally, anything else
+	// (update, delete) invalidates positions and resets.
+	public void update(long id) {
+		if (!loaded) return;
+		if (id > getNewestId()) {
+			loadNew();
+		} else {
+			reset();
+		}
+	}
+
+	public void close() {
+		generation++;
+		listener = null;
+		pages.clear();
+		count = 0;
+	}
+
+	private int findPage(int position) {
+		int low = 0;
+		int high = pages.size() - 1;
+		while (low < high) {
+			int mid = (low + high + 1) >>> 1;
+			if (pages.get(mid).offset <= position) {
+				low = mid;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return low;
+	}
+
+	private void access(int pageIndex) {
+		for (int i = 0; i < pages.size(); i++) {
+			Page page = pages.get(i);
+			if (Math.abs(i - pageIndex) <= 1) {
+				// the page itself and its neighbours, so scrolling back doesn't show empty rows
+				if ((page.rows == null) && !page.loading) reload(i);
+			} else if ((Math.abs(i - pageIndex) > KEEP_PAGES) && !page.loading) {
+				page.rows = null;
+			}
+		}
+	}
+
+	private Database.Location[] readAll(Cursor cursor) {
+		Database.Location[] rows = new Database.Location[cursor.getCount()];
+		Database.Location.Reader reader = new Database.Location.Reader(cursor);
+		int index = 0;
+		if (cursor.moveToFirst()) {
+			do {
+				rows[index++] = reader.read(null);
+			} while (cursor.moveToNext() && (index < rows.length));
+		}
+		return rows;
+	}
+
+	private Page newPage(Database.Location[] rows, int offset) {
+		Page page = new Page();
+		page.offset = offset;
+		page.maxId = rows[0].getId();
+		page.minId = rows[rows.length - 1].getId();
+		page.size = rows.length;
+		page.rows = rows;
+		return page;
+	}
+
+	private void notifyChanged(int inserted) {
+		if (listener != null) listener.onPagerChanged(this, inserted);
+	}
+
+	private void loadNext(final boolean restart) {
+		if ((complete && !restart) || loadingNext) return;
+		loadingNext = true;
+
+		final int loadGeneration = generation;
+		final long beforeId = (!restart && (pages.size() > 0)) ? pages.get(pages.size() - 1).minId : -1;
+
+		(new AsyncTask<Void, Void, Database.Location[]>() {
+			@Override
+			protected Database.Location[] doInBackground(Void... params) {
+				Cursor cursor = Database.Location.listPage(helper, projection, beforeId, PAGE_SIZE);
+				try {
+					return readAll(cursor);
+				} finally {
+					cursor.close();
+				}
+			}
+
+			@Override
+			protected void onPostExecute(Database.Location[] rows) {
+				if (loadGeneration != generation) return;
+				loadingNext = false;
+				loaded = true;
+
+				if (restart) {
+					pages.clear();
+					count = 0;
+					complete = false;
+				}
+
+				if (rows.length > 0) {
+					pages.add(newPage(rows, count));
+					count += rows.length;
+				}
+				if (rows.length < PAGE_SIZE) complete = true;
+
+				notifyChanged(restart ? -1 : 0);
+			}
+		}).execute();
+	}
+
+	private void loadNew() {
+		if (loadingNew) {
+			// another insert arrived while fetching, go again afterwards
+			pendingNew = true;
+			return;
+		}
+		loadingNew = true;
+		pendingNew = false;
+
+		final int loadGeneration = generation;
+		final long afterId = getNewestId();
+
+		(new AsyncTask<Void, Void, Database.Location[]>() {
+			@Override
+			protected Database.Location[] doInBackground(Void... params) {
+				// one more than we're willing to put in front, to detect the too-many case
+				Cursor cursor = Database.Location.listSince(helper, projection, afterId, PAGE_SIZE + 1);
+				try {
+					return readAll(cursor);
+				} finally {
+					cursor.close();
+				}
+			}
+
+			@Override
+			protected void onPostExecute(Database.Location[] rows) {
+				if (loadGeneration != generation) return;
+				loadingNew = false;
+
+				if (rows.length > PAGE_SIZE) {
+					// cheaper to start over than to page in front
+					reset();
+					return;
+				}
+
+				if (rows.length > 0) {
+					Page first = (pages.size() > 0) ? pages.get(0) : null;
+					if ((first != null) && (first.rows != null) && !first.loading && (first.size + rows.length <= PAGE_SIZE)) {
+						// merge into the first page, keeps the page count down when new rows
+						// trickle in
+						Database.Location[] merged = new Database.Location[rows.length + first.size];
+						System.arraycopy(rows, 0, merged, 0, rows.length);
+						System.arraycopy(first.rows, 0, merged, rows.length, first.size);
+						pages.set(0, newPage(merged, 0));
+					} else {
+						pages.add(0, newPage(rows, 0));
+					}
+					for (int i = 1; i < pages.size(); i++) {
+						pages.get(i).offset += rows.length;
+					}
+					count += rows.length;
+
+					notifyChanged(rows.length);
+				}
+
+				if (pendingNew) loadNew();
+			}
+		}).execute();
+	}
+
+	private void reload(int pageIndex) {
+		final int loadGeneration = generation;
+		final Page page = pages.get(pageIndex);
+		page.loading = true;
+
+		(new AsyncTask<Void, Void, Database.Location[]>() {
+			@Override
+			protected Database.Location[] doInBackground(Void... params) {
+				Cursor cursor = Database.Location.listIdRange(helper, projection, page.minId, page.maxId);
+				try {
+					return readAll(cursor);
+				} finally {
+					cursor.close();
+				}
+			}
+
+			@Override
+			protected void onPostExecute(Database.Location[] rows) {
+				if (loadGeneration != generation) return;
+				page.loading = false;
+
+				if (rows.length != page.size) {
+					// rows were deleted, positions are no longer valid
+					Debug.log(Debug.DATABASE, Debug.INFO, "LocationPager: page [%d..%d] changed size %d --> %d, resetting", page.minId, page.maxId, page.size, rows.length);
+					reset();
+					return;
+				}
+
+				page.rows = rows;
+				notifyChanged(0);
+			}
+		}).execute();
+	}
+}
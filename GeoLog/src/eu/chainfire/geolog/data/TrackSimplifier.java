@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2013 Jorrit "Chainfire" Jongma
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.chainfire.geolog.data;
+
+import java.io.IOException;
+
+// Streaming Douglas-Peucker simplification of a track. Points are collected in a window of
+// at most window points, when it is full Douglas-Peucker runs over it with the given tolerance
+// (meters), the points kept are passed on up to the last kept one (the window's end if that
+// is in the first half), and the window continues from there. Memory use is fixed by the
+// window size, regardless of track length. The first and last point of a track are always kept, no point
+// passed on is further than tolerance from the simplified line.
+// Distances are taken on the equirectangular projection around the window's first point,
+// which is accurate to well within any sensible tolerance at window scale.
+public class TrackSimplifier {
+	public interface OnPointListener {
+		public void onPoint(long time, double latitude, double longitude) throws IOException;
+	}
+
+	public static final int DEFAULT_WINDOW = 256;
+
+	private static final double METERS_PER_DEGREE = Geodesy.EARTH_RADIUS * Math.PI / 180.0;
+
+	private final OnPointListener listener;
+	private final double toleranceSquared;
+
+	private final long[] times;
+	private final double[] latitudes;
+	private final double[] longitudes;
+	private final double[] x;
+	private final double[] y;
+	private final boolean[] keep;
+	private final int[] stack;
+	private int count = 0;
+
+	private long pointsIn = 0;
+	private long pointsOut = 0;
+
+	public TrackSimplifier(double tolerance, OnPointListener listener) {
+		this(tolerance, DEFAULT_WINDOW, listener);
+	}
+
+	public TrackSimplifier(double tolerance, int window, OnPointListener listener) {
+		window = Math.max(3, window);
+		this.listener = listener;
+		this.toleranceSquared = tolerance * tolerance;
+		times = new long[window];
+		latitudes = new double[window];
+		longitudes = new double[window];
+		x = new double[window];
+		y = new double[window];
+		keep = new boolean[window];
+		stack = new int[window * 2];
+	}
+
+	public void add(long time, double latitude, double longitude) throws IOException {
+		pointsIn++;
+
+		times[count] = time;
+		latitudes[count] = latitude;
+		longitudes[count] = longitude;
+		count++;
+
+		if (count == 1) {
+			// start of the track
+			emit(0);
+		} else if (count == times.length) {
+			simplify();
+
+			int last = count - 1;
+			int cut = last;
+			for (int i = last - 1; i > 0; i--) {
+				if (keep[i]) {
+					cut = i;
+					break;
+				}
+			}
+			// cutting early means running again soon, so don't cut in the first half
+			if (cut < count / 2) cut = last;
+
+			for (int i = 1; i <= cut; i++) {
+				if (keep[i]) emit(i);
+			}
+
+			int left = count - cut;
+			System.arraycopy(times, cut, times, 0, left);
+			System.arraycopy(latitudes, cut, latitudes, 0, left);
+			System.arraycopy(longitudes, cut, longitudes, 0, left);
+			count = left;
+		}
+	}
+
+	// end of the track, passes on the points still pending
+	public void finish() throws IOException {
+		if (count > 1) {
+			simplify();
+			for (int i = 1; i < count; i++) {
+				if (keep[i]) emit(i);
+			}
+		}
+		count = 0;
+	}
+
+	// drops the points still pending, a new track may be started
+	public void clear() {
+		count = 0;
+	}
+
+	public long getPointsIn() {
+		return pointsIn;
+	}
+
+	public long getPointsOut() {
+		return pointsOut;
+	}
+
+	// points passed on / points added, 1 if none added
+	public float getRatio() {
+		return (pointsIn == 0) ? 1.0f : (float)pointsOut / (float)pointsIn;
+	}
+
+	private void emit(int index) throws IOException {
+		pointsOut++;
+		listener.onPoint(times[index], latitudes[index], longitudes[index]);
+	}
+
+	// marks the points to keep of the current window, iterative to keep stack use fixed
+	private void simplify() {
+		double cosLatitude = Geodesy.cosLatitude(latitudes[0]);
+		for (int i = 0; i < count; i++) {
+			double dLon = longitudes[i] - longitudes[0];
+			if (dLon > 180.0) dLon -= 360.0;
+			else if (dLon < -180.0) dLon += 360.0;
+			x[i] = dLon * cosLatitude * METERS_PER_DEGREE;
+			y[i] = (latitudes[i] - latitudes[0]) * METERS_PER_DEGREE;
+			keep[i] = false;
+		}
+		keep[0] = true;
+		keep[count - 1] = true;
+
+		int top = 0;
+		stack[top++] = 0;
+		stack[top++] = count - 1;
+		while (top > 0) {
+			int end = stack[--top];
+			int start = stack[--top];
+
+			double maxDistance = -1;
+			int maxIndex = -1;
+			for (int i = start + 1; i < end; i++) {
+				double d = segmentDistanceSquared(i, start, end);
+				if (d > maxDistance) {
+					maxDistance = d;
+					maxIndex = i;
+				}
+			}
+
+			if ((maxIndex > 0) && (maxDistance > toleranceSquared)) {
+				keep[maxIndex] = true;
+				stack[top++] = start;
+				stack[top++] = maxIndex;
+				stack[top++] = maxIndex;
+				stack[top++] = end;
+			}
+		}
+	}
+
+	private double segmentDistanceSquared(int point, int start, int end) {
+		double sx = x[end] - x[start];
+		double sy = y[end] - y[start];
+		double px = x[point] - x[start];
+		double py = y[point] - y[start];
+		double length = sx * sx + sy * sy;
+		if (length > 0) {
+			double t = (px * sx + py * sy) / length;
+			if (t > 1) t = 1;
+			if (t > 0) {
+				px -= t * sx;
+				py -= t * sy;
+			}
+		}
+		return px * px + py * py;
+	}
+}
@@ -16,7 +16,11 @@
 
 package eu.chainfire.geolog.service;
 
+import java.text.SimpleDateFormat;
+import java.util.Date;
 import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
 
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.GooglePlayServicesClient.ConnectionCallbacks;
@@ -32,8 +36,8 @@ import eu.chainfire.geolog.Debug;
 import eu.chainfire.geolog.R;
 import eu.chainfire.geolog.data.Database;
 import eu.chainfire.geolog.data.Database.Accuracy;
-import eu.chainfire.geolog.data.Database.Activity;
-import eu.chainfire.geolog.data.Database.Profile.Type;
+import eu.chainfire.geolog.data.EnergyEstimator;
+import eu.chainfire.geolog.data.LocationBuffer;
 import eu.chainfire.geolog.ui.MainActivity;
 import eu.chainfire.geolog.ui.SettingsFragment;
 
@@ -68,6 +72,9 @@ public class BackgroundService extends Service {
 	
 	private static String EXTRA_ALARM_CALLBACK = "eu.chainfire.geolog.EXTRA.ALARM_CALLBACK";
 	
+	// request timeline kept for energy estimates
+	private static final long REQUEST_HISTORY = 30L * 24 * 60 * 60 * 1000;
+	
 	private volatile ServiceThread thread = null;
 	private volatile PowerManager.WakeLock wakelock = null;
 
@@ -79,10 +86,10 @@ public class BackgroundService extends Service {
 	@Override
 	public void onCreate() {
 		super.onCreate();
-		Debug.log("Service created");
+		Debug.log(Debug.SERVICE, Debug.INFO, "Service created");
 		
 		if (thread == null) {
-			Debug.log("Launching thread");
+			Debug.log(Debug.SERVICE, Debug.INFO, "Launching thread");
 			thread = new ServiceThread();
 			thread.setContext(getApplicationContext());
 			thread.start();
@@ -137,14 +144,14 @@ public class BackgroundService extends Service {
 	
 	@Override
 	public void onDestroy() {		
-		Debug.log("Stopping thread");
+		Debug.log(Debug.SERVICE, Debug.INFO, "Stopping thread");
 		thread.signalStop();
 		try { thread.join(); } catch (Exception e) { }
 		thread = null;
 		
-		((NotificationManager)getSystemService(NOTIFICATION_SERVICE)).cancelAll();
+		((NotificationManager)getSystemService(NOTIFICATION_SERVICE)).cancel(1); // not ExportService's
 		
-		Debug.log("Service destroyed");
+		Debug.log(Debug.SERVICE, Debug.INFO, "Service destroyed");
 		super.onDestroy();
 	}
 
@@ -160,11 +167,6 @@ public class BackgroundService extends Service {
 	}
 	
 	private class ServiceThread extends Thread {
-		private static final int FLAG_SETUP = 1;
-		private static final int FLAG_ACTIVITY_UPDATE = 2;
-		private static final int FLAG_LOCATION_UPDATE = 4;
-		private static final int FLAG_PROFILE = 8;
-
 		private volatile Context context = null;
 		private volatile Handler handler = null;
 		
@@ -179,27 +181,13 @@ public class BackgroundService extends Service {
 		private volatile boolean locationConnected = false;
 		
 		private volatile Database.Helper databaseHelper = null;
+		private volatile LocationBuffer locationBuffer = null;
 		
 		private volatile boolean metric = true;
 				
-		private volatile Database.Activity lastActivity = Database.Activity.UNKNOWN;
-		private volatile int lastConfidence = 0;
-		private volatile Location lastLocLoc = null; 
-		private volatile Database.Location lastLocation = null;
-		private volatile long lastLocationDuplicates = 0;
-		private volatile long lastNonUnknown = 0;
-		
-		private volatile Database.Accuracy lastLocationAccuracy = Database.Accuracy.NONE;
-		private volatile int lastLocationInterval = -1;
-		private volatile int lastActivityInterval = -1;
-		private volatile int lastBatteryLevel = 0;
-		private volatile boolean isSegmentStart = true;
-		private volatile long lastProfileUpdate = SystemClock.elapsedRealtime();
-		
-		private volatile long scheduledReduceAccuracyTime = 0;
-		
 		private volatile SharedPreferences prefs = null;		
-		private volatile Database.Profile currentProfile = null;
+		private volatile TrackingEngine engine = null;
+		private volatile long startTime = 0;
 		
 		// Main thread
 		
@@ -240,7 +228,7 @@ public class BackgroundService extends Service {
 					handler.post(new Runnable() {					
 						@Override
 						public void run() {
-							setActivity(Database.activityFromDetectedActivity(activity), activity.getConfidence());
+							engine.setActivity(Database.activityFromDetectedActivity(activity), activity.getConfidence());
 							wakelock.release();
 						}
 					});
@@ -254,7 +242,7 @@ public class BackgroundService extends Service {
 				handler.post(new Runnable() {					
 					@Override
 					public void run() {
-						updateListeners(0);
+						engine.update(0);
 						wakelock.release();
 					}
 				});
@@ -262,203 +250,84 @@ public class BackgroundService extends Service {
 		}
 		
 		// Service thread
-						
-		private void setActivity(Database.Activity activity, int confidence) {
-			if ((activity == Activity.UNKNOWN) && (SystemClock.elapsedRealtime() < lastNonUnknown + (2 * 60 * 1000)) && (SystemClock.elapsedRealtime() > lastNonUnknown)) {
-				return;
-			}
-			if (activity != Activity.UNKNOWN) {
-				lastNonUnknown = SystemClock.elapsedRealtime();
-			}
-			
-			Debug.log(String.format(Locale.ENGLISH, "A: %s (%d%%)", Database.activityToString(activity), confidence));
-			
-			lastActivity = activity;
-			lastConfidence = confidence;
-			updateListeners(FLAG_ACTIVITY_UPDATE);
-		}
 		
-		private void setLocation(Location location) {
-			Debug.log(String.format(Locale.ENGLISH, "L: lat=%.8f long=%.5f alt=%.5f bearing=%.4f speed=%.4f accuracy=%.2f", location.getLatitude(), location.getLongitude(), location.getAltitude(), location.getBearing(), location.getSpeed(), location.getAccuracy()));
-
-			lastLocLoc = location;
-			updateListeners(FLAG_LOCATION_UPDATE);
+		private void updateEngineConnected() {
+			engine.setConnected(activityConnected && locationConnected);
+			engine.update(TrackingEngine.FLAG_SETUP);
 		}
 		
-		@SuppressLint("NewApi")
-		private void updateListeners(int flags) {
-			if (!(activityConnected && locationConnected && (currentProfile != null))) return;			
-
-			if (currentProfile.getType() == Type.OFF) {
-				stopSelf();
+		private TrackingEngine.Clock engineClock = new TrackingEngine.Clock() {
+			@Override
+			public long elapsedRealtime() {
+				return SystemClock.elapsedRealtime();
 			}
-			
-			if ((flags & FLAG_PROFILE) == FLAG_PROFILE) {
-				Debug.log("Profile update");
-				
-				lastActivity = Activity.UNKNOWN;
-				lastConfidence = 0;
-				
-				scheduledReduceAccuracyTime = 0L;
-				lastProfileUpdate = SystemClock.elapsedRealtime();
+
+			@Override
+			public long currentTimeMillis() {
+				return System.currentTimeMillis();
 			}
-			
-			Accuracy originalAccuracy = lastLocationAccuracy;
-			
-			Database.Profile.ActivitySettings wanted = currentProfile.getActivitySettings(lastActivity);
-			Database.Accuracy wantedAccuracy = wanted.getAccuracy();
-			int wantedLocationInterval = wanted.getLocationInterval();
-			int wantedActivityInterval = wanted.getActivityInterval();
-			
-			boolean allowUpdateActivityInterval = true;
-			boolean allowUpdateLocationInterval = true;
-			boolean allowUpdateLocationAccuracy = true;
-			
-			if (
-					(
-							(SystemClock.elapsedRealtime() > lastProfileUpdate + (90 * 1000)) || 
-							(SystemClock.elapsedRealtime() < lastProfileUpdate)
-					) &&
-					(currentProfile.getReduceAccuracyDelay() > 0) && 
-					(
-							(wantedActivityInterval > lastActivityInterval) ||
-							(wantedLocationInterval > lastLocationInterval) || 
-							(Database.accuracyToInt(wantedAccuracy) < Database.accuracyToInt(lastLocationAccuracy))
-					)
-			) {
-				long left = 0;
-				
-				if (scheduledReduceAccuracyTime == 0) {
-					left = currentProfile.getReduceAccuracyDelay() * 1000;
-					scheduledReduceAccuracyTime = SystemClock.elapsedRealtime() + left;					
-					alarm.set(AlarmManager.ELAPSED_REALTIME_WAKEUP, scheduledReduceAccuracyTime + 1000, alarmCallback);
-				} else {
-					left = scheduledReduceAccuracyTime - SystemClock.elapsedRealtime();
-				}
-				
-				if (left <= 0) scheduledReduceAccuracyTime = 0L;
 
-				allowUpdateActivityInterval = ((left <= 0) || (wantedActivityInterval < lastActivityInterval) || (lastActivityInterval == -1));
-				allowUpdateLocationInterval = ((left <= 0) || (wantedLocationInterval < lastLocationInterval) || (lastLocationInterval == -1));
-				allowUpdateLocationAccuracy = ((left <= 0) || (Database.accuracyToInt(wantedAccuracy) > Database.accuracyToInt(lastLocationAccuracy)));				
-				
-				if (!allowUpdateActivityInterval) wantedActivityInterval = lastActivityInterval;
-				if (!allowUpdateLocationInterval) wantedLocationInterval = lastLocationInterval;
-				if (!allowUpdateLocationAccuracy) wantedAccuracy = lastLocationAccuracy;
+			@Override
+			public void setAlarm(long elapsedRealtime) {
+				alarm.set(AlarmManager.ELAPSED_REALTIME_WAKEUP, elapsedRealtime, alarmCallback);
+			}
 
-				if (!allowUpdateActivityInterval) Debug.log(String.format(Locale.ENGLISH, "ActivityInterval --> Delay (%ds remaining)", (left / 1000)));
-				if (!allowUpdateLocationInterval) Debug.log(String.format(Locale.ENGLISH, "LocationInterval --> Delay (%ds remaining)", (left / 1000)));
-				if (!allowUpdateLocationAccuracy) Debug.log(String.format(Locale.ENGLISH, "LocationAccuracy --> Delay (%ds remaining)", (left / 1000)));
-			} else {
-				scheduledReduceAccuracyTime = 0;
+			@Override
+			public void cancelAlarm() {
 				alarm.cancel(alarmCallback);
 			}
-			
-			if ((wantedAccuracy != lastLocationAccuracy) || (wantedLocationInterval != lastLocationInterval)) {
-				String s = "NONE";
-				if (wantedAccuracy == Accuracy.LOW) s = "LOW";
-				if (wantedAccuracy == Accuracy.HIGH) s = "HIGH";
-				Debug.log(String.format(Locale.ENGLISH, "Location --> %s %ds", s, wantedLocationInterval));
-				
+		};
+		
+		private TrackingEngine.LocationSource engineLocationSource = new TrackingEngine.LocationSource() {
+			@Override
+			public void requestLocationUpdates(Accuracy accuracy, int interval) {
+				LocationRequest req = new LocationRequest();
+				req.setFastestInterval(interval * 250);
+				req.setInterval(interval * 1000);
+				if (accuracy == Accuracy.NONE) req.setPriority(LocationRequest.PRIORITY_NO_POWER);
+				if (accuracy == Accuracy.LOW) req.setPriority(LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY);
+				if (accuracy == Accuracy.HIGH) req.setPriority(LocationRequest.PRIORITY_HIGH_ACCURACY);
+				locationClient.requestLocationUpdates(req, locationListener);
+			}
+
+			@Override
+			public void removeLocationUpdates() {
 				locationClient.removeLocationUpdates(locationListener);
-				
-				if ((wantedAccuracy != Accuracy.NONE) && (wantedLocationInterval > 0)) {
-					if ((lastLocationAccuracy == Accuracy.NONE) || (lastLocationInterval == 0)) isSegmentStart = true;
-					
-					LocationRequest req = new LocationRequest();
-					req.setFastestInterval(wantedLocationInterval * 250);
-					req.setInterval(wantedLocationInterval * 1000);
-					if (lastLocationAccuracy == Accuracy.NONE) req.setPriority(LocationRequest.PRIORITY_NO_POWER);
-					if (lastLocationAccuracy == Accuracy.LOW) req.setPriority(LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY);
-					if (lastLocationAccuracy == Accuracy.HIGH) req.setPriority(LocationRequest.PRIORITY_HIGH_ACCURACY);
-					locationClient.requestLocationUpdates(req, locationListener);
-				}
-				
-				lastLocationAccuracy = wantedAccuracy;
-				lastLocationInterval = wantedLocationInterval;
 			}
-			
-			if (wantedActivityInterval != lastActivityInterval) {
-				Debug.log(String.format(Locale.ENGLISH, "Activity --> %ds", wantedActivityInterval));
+		};
+		
+		private TrackingEngine.ActivitySource engineActivitySource = new TrackingEngine.ActivitySource() {
+			@Override
+			public void requestActivityUpdates(int interval) {
+				activityClient.requestActivityUpdates(interval * 1000, activityIntent);
+			}
 
+			@Override
+			public void removeActivityUpdates() {
 				activityClient.removeActivityUpdates(activityIntent);
-				
-				if ((wantedActivityInterval == 0) && (lastActivityInterval != 0)) {
-					lastActivity = Activity.UNKNOWN;
-					lastConfidence = 0;					
-				}
-				
-				if (wantedActivityInterval != 0) {
-					activityClient.requestActivityUpdates(wantedActivityInterval * 1000, activityIntent);
-				}
-				
-				lastActivityInterval = wantedActivityInterval;
 			}
-						
-			if ((flags & FLAG_ACTIVITY_UPDATE) == FLAG_ACTIVITY_UPDATE) {
-				if (
-						(lastLocation == null) || 
-						(lastLocation.getActivity() != lastActivity) || 
-						(lastLocation.getConfidence() != lastConfidence)
-				) {
-					Debug.log("Activity update");
-					if (lastLocation == null) {
-						lastLocationDuplicates = 0;
-						
-						lastLocation = new Database.Location();
-						lastLocation.setTime(System.currentTimeMillis());
-					}
-					lastLocation.setActivity(lastActivity);
-					lastLocation.setConfidence(lastConfidence);
-				}
-			} else if ((flags & FLAG_LOCATION_UPDATE) == FLAG_LOCATION_UPDATE) {
-				if (
-						(lastLocation == null) ||
-						(lastLocLoc == null) ||
-						(lastLocation.getLatitude() != lastLocLoc.getLatitude()) || 
-						(lastLocation.getLongitude() != lastLocLoc.getLongitude()) ||
-						(lastLocation.getAccuracyDistance() > lastLocLoc.getAccuracy()) ||
-						(lastLocation.getActivity() != lastActivity) ||
-						(lastLocation.getConfidence() != lastConfidence) ||
-						(lastLocation.getAccuracySetting() != originalAccuracy) ||
-						(isSegmentStart)
-				) {				
-					Debug.log("Location update");
-					
-					if (lastLocationDuplicates > 0) {
-						Debug.log("Saving last duplicate (out of " + String.valueOf(lastLocationDuplicates) + ")");
-						Database.Location.copy(databaseHelper, lastLocation);
-					}
+		};
+		
+		private TrackingEngine.Sink engineSink = new TrackingEngine.Sink() {
+			@Override
+			public void add(Database.Location location) {
+				locationBuffer.add(location);
+				if (Debug.isEnabled(Debug.SERVICE, Debug.VERBOSE)) Debug.log(Debug.SERVICE, Debug.VERBOSE, "Queued for database: %d", locationBuffer.size());
+			}
 
-					lastLocationDuplicates = 0;
-					
-					Database.Location loc = new Database.Location();
-					loc.setActivity(lastActivity);
-					loc.setConfidence(lastConfidence);
-					loc.setBattery(lastBatteryLevel);
-					loc.setAccuracySetting(originalAccuracy);
-					loc.isSegmentStart(isSegmentStart);
-					loc.loadFromLocation(lastLocLoc);
-					Debug.log("Saved to database: " + String.valueOf(loc.saveToDatabase(databaseHelper)));
-				
-					lastLocation = loc;
-					isSegmentStart = false;
-				} else if (
-						(lastLocation != null) &&
-						(lastLocLoc != null)
-				) {
-					lastLocationDuplicates++;
+			@Override
+			public void flush() {
+				locationBuffer.flush();
+			}
 
-					lastLocation.setActivity(lastActivity);
-					lastLocation.setConfidence(lastConfidence);
-					lastLocation.setBattery(lastBatteryLevel);
-					lastLocation.setAccuracySetting(originalAccuracy);
-					lastLocation.isSegmentStart(isSegmentStart);
-					lastLocation.loadFromLocation(lastLocLoc);
-				}
+			@Override
+			public void stop() {
+				stopSelf();
 			}
-				
-			if (lastLocation != null) {
+
+			@SuppressLint("NewApi")
+			@Override
+			public void updated(Database.Location lastLocation) {
 				notificationBuilder.
 					setWhen(lastLocation.getTime()).
 					setContentText(String.format(Locale.ENGLISH, "%s ~ %d%% / %.5f, %.5f ~ %.0f%s", Database.activityToString(lastLocation.getActivity()), lastLocation.getConfidence(), lastLocation.getLatitude(), lastLocation.getLongitude(), metric ? lastLocation.getAccuracyDistance() : lastLocation.getAccuracyDistance() * SettingsFragment.METER_FEET_RATIO, metric ? "m" : "ft"));
@@ -469,30 +338,74 @@ public class BackgroundService extends Service {
 					
 				updateNotification();
 			}
+			
+			@Override
+			public void requests(Database.Profile profile, Database.Activity activity, Accuracy accuracy, int locationInterval, int activityInterval) {
+				Debug.log(Debug.SERVICE, Debug.INFO, "Requests: profile %d, %s, %s @ %ds, activity @ %ds", profile.getId(), activity, accuracy, locationInterval, activityInterval);
+				saveRequest(System.currentTimeMillis(), profile.getId(), activity, accuracy, locationInterval, activityInterval);
+			}
+		};
+		
+		private void saveRequest(long time, long profileId, Database.Activity activity, Accuracy accuracy, int locationInterval, int activityInterval) {
+			(new Database.Request()).
+				setTime(time).
+				setProfileId(profileId).
+				setActivity(activity).
+				setLocationAccuracy(accuracy).
+				setLocationInterval(locationInterval).
+				setActivityInterval(activityInterval).
+				saveToDatabase(databaseHelper);
+		}
+		
+		// This session, then the whole history kept broken down per profile, activity and day, to
+		// tune the profiles with
+		private void logEnergyEstimate(long timeStart, long timeEnd) {
+			EnergyEstimator session = new EnergyEstimator(TimeZone.getDefault());
+			session.add(Database.Request.list(databaseHelper, timeStart, timeEnd), timeStart, timeEnd);
+			Debug.log(Debug.SERVICE, Debug.INFO, "Energy estimate: %.1f mAh over %.1f h (location %.1f, activity %.1f), %.2f mA average", session.getTotal(), session.getDuration() / 3600000.0, session.getLocation(), session.getActivity(), session.getAverageCurrent());
+			
+			long historyStart = timeEnd - REQUEST_HISTORY;
+			EnergyEstimator history = new EnergyEstimator(TimeZone.getDefault());
+			history.add(Database.Request.list(databaseHelper, historyStart, timeEnd), historyStart, timeEnd);
+			Debug.log(Debug.SERVICE, Debug.INFO, "Energy history: %.1f mAh over %.1f h, %.2f mA average", history.getTotal(), history.getDuration() / 3600000.0, history.getAverageCurrent());
+			for (Map.Entry<Long, Double> entry : history.getPerProfile().entrySet()) {
+				if (entry.getValue() <= 0) continue;
+				Database.Profile profile = Database.Profile.getById(databaseHelper, entry.getKey(), null);
+				Debug.log(Debug.SERVICE, Debug.INFO, "Energy history: profile %s: %.1f mAh", (profile != null) ? profile.getName() : String.valueOf(entry.getKey()), entry.getValue());
+			}
+			for (Database.Activity activity : Database.Activity.values()) {
+				if (history.getActivity(activity) <= 0) continue;
+				Debug.log(Debug.SERVICE, Debug.INFO, "Energy history: activity %s: %.1f mAh", Database.activityToString(activity), history.getActivity(activity));
+			}
+			SimpleDateFormat day = new SimpleDateFormat("yyyy-MM-dd", Locale.ENGLISH);
+			for (Map.Entry<Long, Double> entry : history.getPerDay().entrySet()) {
+				Debug.log(Debug.SERVICE, Debug.INFO, "Energy history: day %s: %.1f mAh", day.format(new Date(entry.getKey())), entry.getValue());
+			}
 		}
 		
 		private ConnectionCallbacks activityConnectionCallbacks = new ConnectionCallbacks() {
 			@Override
 			public void onConnected(Bundle arg0) {
-				Debug.log("ActivityRecognitionClient connected");
+				Debug.log(Debug.SERVICE, Debug.INFO, "ActivityRecognitionClient connected");
 
 				activityConnected = true;
 				
-				updateListeners(FLAG_SETUP);
+				updateEngineConnected();
 			}
 			
 			@Override
 			public void onDisconnected() {
-				Debug.log("ActivityRecognitionClient disconnected");
+				Debug.log(Debug.SERVICE, Debug.INFO, "ActivityRecognitionClient disconnected");
 
 				activityConnected = false;
+				engine.setConnected(false);
 			}				
 		};
 		
 		private OnConnectionFailedListener activityConnectionFailed = new OnConnectionFailedListener() {			
 			@Override
 			public void onConnectionFailed(ConnectionResult arg0) {
-				Debug.log("ActivityRecognitionClient connection failed");
+				Debug.log(Debug.SERVICE, Debug.INFO, "ActivityRecognitionClient connection failed");
 
 				activityConnected = false;				
 				signalStop();
@@ -504,7 +417,9 @@ public class BackgroundService extends Service {
 			public void onLocationChanged(Location arg0) {
 				wakelock.acquire();
 				try {
-					setLocation(arg0);
+					Database.Location fix = new Database.Location();
+					fix.loadFromLocation(arg0);
+					engine.setLocation(fix);
 				} finally {
 					wakelock.release();
 				}
@@ -514,25 +429,26 @@ public class BackgroundService extends Service {
 		private ConnectionCallbacks locationConnectionCallbacks = new ConnectionCallbacks() {
 			@Override
 			public void onConnected(Bundle arg0) {
-				Debug.log("LocationClient connected");
+				Debug.log(Debug.SERVICE, Debug.INFO, "LocationClient connected");
 				
 				locationConnected = true;
 				
-				updateListeners(FLAG_SETUP);				
+				updateEngineConnected();
 			}
 			
 			@Override
 			public void onDisconnected() {
-				Debug.log("LocationClient disconnected");
+				Debug.log(Debug.SERVICE, Debug.INFO, "LocationClient disconnected");
 				
 				locationConnected = false;
+				engine.setConnected(false);
 			}				
 		};
 		
 		private OnConnectionFailedListener locationConnectionFailed = new OnConnectionFailedListener() {			
 			@Override
 			public void onConnectionFailed(ConnectionResult arg0) {
-				Debug.log("LocationClient connection failed");
+				Debug.log(Debug.SERVICE, Debug.INFO, "LocationClient connection failed");
 
 				locationConnected = false;			
 				signalStop();
@@ -541,32 +457,44 @@ public class BackgroundService extends Service {
 		
 		private BroadcastReceiver databaseUpdated = new BroadcastReceiver() {			
 			@Override
-			public void onReceive(Context context, Intent intent) {
-				if (
-						(currentProfile != null) &&
-						(intent != null) &&
-						intent.hasExtra(Database.Helper.EXTRA_TABLE) &&
-						intent.getStringExtra(Database.Helper.EXTRA_TABLE).equals(Database.Profile.TABLE_NAME) &&
-						intent.hasExtra(Database.Helper.EXTRA_ID) &&
-						(intent.getLongExtra(Database.Helper.EXTRA_ID, 0) == currentProfile.getId()) 
-				) {
-					currentProfile = Database.Profile.getById(databaseHelper, intent.getLongExtra(Database.Helper.EXTRA_ID, 0), currentProfile);
-					updateListeners(FLAG_PROFILE);
-				}
+			public void onReceive(Context context, final Intent intent) {
+				// the engine is only used from the service thread
+				handler.post(new Runnable() {
+					@Override
+					public void run() {
+						Database.Profile currentProfile = engine.getProfile();
+						if (
+								(currentProfile != null) &&
+								(intent != null) &&
+								intent.hasExtra(Database.Helper.EXTRA_TABLE) &&
+								intent.getStringExtra(Database.Helper.EXTRA_TABLE).equals(Database.Profile.TABLE_NAME) &&
+								intent.hasExtra(Database.Helper.EXTRA_ID) &&
+								(intent.getLongExtra(Database.Helper.EXTRA_ID, 0) == currentProfile.getId()) 
+						) {
+							engine.setProfile(Database.Profile.getById(databaseHelper, intent.getLongExtra(Database.Helper.EXTRA_ID, 0), currentProfile));
+							engine.update(TrackingEngine.FLAG_PROFILE);
+						}
+					}
+				});
 			}
 		};
 		
 		private OnSharedPreferenceChangeListener preferencesUpdated = new OnSharedPreferenceChangeListener() {			
 			@Override
-			public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
-				if (key.equals(SettingsFragment.PREF_UNITS)) {
-					metric = !prefs.getString(SettingsFragment.PREF_UNITS, SettingsFragment.PREF_UNITS_DEFAULT).equals(SettingsFragment.VALUE_UNITS_IMPERIAL);					
-					updateListeners(0);
-				}
-				if (key.equals(SettingsFragment.PREF_CURRENT_PROFILE)) {
-					currentProfile = Database.Profile.getById(databaseHelper, sharedPreferences.getLong(key, 0), currentProfile);
-					updateListeners(FLAG_PROFILE);
-				}
+			public void onSharedPreferenceChanged(final SharedPreferences sharedPreferences, final String key) {
+				handler.post(new Runnable() {
+					@Override
+					public void run() {
+						if (key.equals(SettingsFragment.PREF_UNITS)) {
+							metric = !prefs.getString(SettingsFragment.PREF_UNITS, SettingsFragment.PREF_UNITS_DEFAULT).equals(SettingsFragment.VALUE_UNITS_IMPERIAL);					
+							engine.update(0);
+						}
+						if (key.equals(SettingsFragment.PREF_CURRENT_PROFILE)) {
+							engine.setProfile(Database.Profile.getById(databaseHelper, sharedPreferences.getLong(key, 0), engine.getProfile()));
+							engine.update(TrackingEngine.FLAG_PROFILE);
+						}
+					}
+				});
 			}
 		};
 		
@@ -584,15 +512,26 @@ public class BackgroundService extends Service {
 				int level = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, 0);
 				if (charging) level += 100;
 				
-				lastBatteryLevel = level;
+				final int batteryLevel = level;
+				handler.post(new Runnable() {
+					@Override
+					public void run() {
+						engine.setBatteryLevel(batteryLevel);
+					}
+				});
 			}
 		};
 
 		@Override
 		public void run() {
-			Debug.log("Thread init");
+			Debug.log(Debug.SERVICE, Debug.INFO, "Thread init");
 						
 			databaseHelper = Database.Helper.getInstance(context);
+			startTime = System.currentTimeMillis();
+			Database.Request.deleteBefore(databaseHelper, startTime - REQUEST_HISTORY);
+			// if we weren't stopped cleanly the last row is still open, close it: nothing was
+			// requested while we weren't running
+			saveRequest(startTime, 0, Database.Activity.UNKNOWN, Accuracy.NONE, 0, 0);
 			
 			alarm = (AlarmManager)context.getSystemService(ALARM_SERVICE);
 			{
@@ -603,37 +542,52 @@ public class BackgroundService extends Service {
 
 			Looper.prepare();
 			handler = new Handler();
+			locationBuffer = new LocationBuffer(databaseHelper, handler);
+			engine = new TrackingEngine(engineClock, engineLocationSource, engineActivitySource, engineSink);
 					
-			Debug.log("Registering for updates");			
+			Debug.log(Debug.SERVICE, Debug.INFO, "Registering for updates");			
 			prefs = PreferenceManager.getDefaultSharedPreferences(context);					
 			long id = prefs.getLong(SettingsFragment.PREF_CURRENT_PROFILE, 0);
+			Database.Profile currentProfile = null;
 			if (id > 0) currentProfile = Database.Profile.getById(databaseHelper, id, null);
 			if (currentProfile == null) currentProfile = Database.Profile.getOffProfile(databaseHelper);
+			engine.setProfile(currentProfile);
 			metric = !prefs.getString(SettingsFragment.PREF_UNITS, SettingsFragment.PREF_UNITS_DEFAULT).equals(SettingsFragment.VALUE_UNITS_IMPERIAL);
 			prefs.registerOnSharedPreferenceChangeListener(preferencesUpdated);
 			LocalBroadcastManager.getInstance(context).registerReceiver(databaseUpdated, new IntentFilter(Database.Helper.NOTIFY_BROADCAST));
 			
-			Debug.log("Registering for power levels");
+			Debug.log(Debug.SERVICE, Debug.INFO, "Registering for power levels");
 			context.registerReceiver(batteryReceiver, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
 			
-			Debug.log("Connecting ActivityRecognitionClient");
+			Debug.log(Debug.SERVICE, Debug.INFO, "Connecting ActivityRecognitionClient");
 			activityIntent = PendingIntent.getService(context, 1, new Intent(context, BackgroundService.class), 0);
 			activityClient = new ActivityRecognitionClient(context, activityConnectionCallbacks, activityConnectionFailed);
 			activityClient.connect();
 
-			Debug.log("Connecting LocationClient");
+			Debug.log(Debug.SERVICE, Debug.INFO, "Connecting LocationClient");
 			locationClient = new LocationClient(context, locationConnectionCallbacks, locationConnectionFailed);
 			locationClient.connect();
 			
-			Debug.log("Entering loop");
+			Debug.log(Debug.SERVICE, Debug.INFO, "Entering loop");
 			handler.post(new Runnable() {				
 				@Override
 				public void run() {
-					updateListeners(FLAG_SETUP);
+					engine.update(TrackingEngine.FLAG_SETUP);
 				}
 			});						
 			Looper.loop();			
-			Debug.log("Exiting loop");
+			Debug.log(Debug.SERVICE, Debug.INFO, "Exiting loop");
+			
+			locationBuffer.flush();
+			
+			// close the timeline, nothing is requested while we're not running
+			if (engine.getProfile() != null) saveRequest(System.currentTimeMillis(), engine.getProfile().getId(), engine.getActivity(), Accuracy.NONE, 0, 0);
+			// not worth the queries if nobody reads it
+			if (Debug.isEnabled(Debug.SERVICE, Debug.INFO)) logEnergyEstimate(startTime, System.currentTimeMillis());
+			
+			databaseHelper.checkpoint();
+			Debug.log(Debug.SERVICE, Debug.INFO, "LocationBuffer: " + locationBuffer.getStatistics());
+			Debug.log(Debug.SERVICE, Debug.INFO, "RequestManager: " + engine.getRequestManager().getStatistics());
 			
 			context.unregisterReceiver(batteryReceiver);
 			
@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2013 Jorrit "Chainfire" Jongma
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.chainfire.geolog.service;
+
+import eu.chainfire.geolog.Debug;
+import eu.chainfire.geolog.R;
+import eu.chainfire.geolog.data.Database;
+import eu.chainfire.geolog.data.Exporter;
+import eu.chainfire.geolog.ui.ExportActivity;
+
+import android.annotation.SuppressLint;
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Build;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.PowerManager;
+import android.support.v4.content.LocalBroadcastManager;
+
+// Runs an export in the foreground, with progress and a cancel action in the notification,
+// independent of the activity that started it. If the process is killed anyway, the intent is
+// redelivered and the export continues from its last checkpoint (see Exporter.export()).
+// One export at a time, starting another while one is running is ignored.
+public class ExportService extends Service {
+	public static void startExport(Context context, Exporter exporter) {
+		Intent i = new Intent(context.getApplicationContext(), ExportService.class);
+		i.setAction(ACTION_EXPORT);
+		i.putExtra(EXTRA_SETTINGS, exporter.toBundle());
+		context.startService(i);
+	}
+
+	public static void cancelExport(Context context) {
+		Intent i = new Intent(context.getApplicationContext(), ExportService.class);
+		i.setAction(ACTION_CANCEL);
+		context.startService(i);
+	}
+
+	public static boolean isRunning() {
+		return running;
+	}
+
+	public static int getProgress() {
+		return progress;
+	}
+
+	public static int getTotal() {
+		return total;
+	}
+
+	public static final String ACTION_EXPORT = "eu.chainfire.geolog.ExportService.ACTION.EXPORT";
+	public static final String ACTION_CANCEL = "eu.chainfire.geolog.ExportService.ACTION.CANCEL";
+
+	private static final String EXTRA_SETTINGS = "eu.chainfire.geolog.ExportService.EXTRA.SETTINGS";
+
+	// Sent through LocalBroadcastManager with progress, and once more when done
+	public static final String NOTIFY_BROADCAST = "eu.chainfire.geolog.ExportService.NOTIFY_BROADCAST";
+	public static final String EXTRA_PROGRESS = "eu.chainfire.geolog.ExportService.EXTRA.PROGRESS";
+	public static final String EXTRA_TOTAL = "eu.chainfire.geolog.ExportService.EXTRA.TOTAL";
+	public static final String EXTRA_DONE = "eu.chainfire.geolog.ExportService.EXTRA.DONE";
+	public static final String EXTRA_FILENAME = "eu.chainfire.geolog.ExportService.EXTRA.FILENAME"; // not present if failed
+	public static final String EXTRA_CANCELLED = "eu.chainfire.geolog.ExportService.EXTRA.CANCELLED";
+	public static final String EXTRA_NOTHING_NEW = "eu.chainfire.geolog.ExportService.EXTRA.NOTHING_NEW"; // incremental, no file written
+	public static final String EXTRA_SIMPLIFIED_IN = "eu.chainfire.geolog.ExportService.EXTRA.SIMPLIFIED_IN";
+	public static final String EXTRA_SIMPLIFIED_OUT = "eu.chainfire.geolog.ExportService.EXTRA.SIMPLIFIED_OUT";
+
+	private static final int NOTIFICATION_ID = 2;
+
+	private static volatile boolean running = false;
+	private static volatile int progress = 0;
+	private static volatile int total = 0;
+
+	private volatile Exporter exporter = null;
+	private volatile Thread thread = null;
+	private volatile Handler handler = null;
+	private volatile PowerManager.WakeLock wakelock = null;
+
+	private volatile NotificationManager notificationManager;
+	private volatile Notification.Builder notificationBuilder;
+	private int notificationPercentage = -1;
+
+	@Override
+	public void onCreate() {
+		super.onCreate();
+		handler = new Handler();
+
+		PowerManager pm = (PowerManager)getSystemService(POWER_SERVICE);
+		wakelock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "GeoLog Export Wakelock");
+
+		notificationManager = (NotificationManager)getSystemService(NOTIFICATION_SERVICE);
+	}
+
+	@Override
+	public IBinder onBind(Intent intent) {
+		return null;
+	}
+
+	@Override
+	public int onStartCommand(Intent intent, int flags, int startId) {
+		String action = (intent != null) ? intent.getAction() : null;
+
+		if (ACTION_CANCEL.equals(action)) {
+			Exporter e = exporter;
+			if (e != null) {
+				Debug.log(Debug.EXPORT, Debug.INFO, "Export cancelled");
+				e.cancel();
+			} else {
+				// only this start, a redelivered export may be pending
+				stopSelf(startId);
+			}
+			return START_NOT_STICKY;
+		}
+
+		if (ACTION_EXPORT.equals(action)) {
+			if (thread == null) {
+				if ((flags & START_FLAG_REDELIVERY) != 0) Debug.log(Debug.EXPORT, Debug.INFO, "Export redelivered");
+				startExport(Exporter.fromBundle(this, intent.getBundleExtra(EXTRA_SETTINGS)));
+				return START_REDELIVER_INTENT;
+			}
+			// ignored, must not be the one redelivered if we're killed
+			Debug.log(Debug.EXPORT, Debug.INFO, "Export already running, ignored");
+		}
+		return START_NOT_STICKY;
+	}
+
+	@SuppressLint("NewApi")
+	private void startExport(final Exporter exporter) {
+		this.exporter = exporter;
+		running = true;
+		progress = 0;
+		total = 0;
+
+		Intent i = new Intent(this, ExportActivity.class);
+		i.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+		PendingIntent contentIntent = PendingIntent.getActivity(this, 0, i, 0);
+
+		Intent c = new Intent(this, ExportService.class);
+		c.setAction(ACTION_CANCEL);
+		PendingIntent cancelIntent = PendingIntent.getService(this, 0, c, 0);
+
+		notificationPercentage = -1;
+		notificationBuilder = (new Notification.Builder(this)).
+			setSmallIcon(R.drawable.ic_stat_service).
+			setContentIntent(contentIntent).
+			setWhen(System.currentTimeMillis()).
+			setAutoCancel(false).
+			setOngoing(true).
+			setOnlyAlertOnce(true).
+			setContentTitle(getString(R.string.export_exporting)).
+			setProgress(0, 0, true);
+
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+			notificationBuilder.addAction(0, getString(R.string.generic_cancel), cancelIntent);
+		}
+
+		startForeground(NOTIFICATION_ID, buildNotification());
+
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				wakelock.acquire();
+				try {
+					final String filename = exporter.export(Database.Helper.getInstance(getApplicationContext()), new Exporter.OnExportProgressListener() {
+						@Override
+						public void OnExportProgress(final int cur, final int max) {
+							progress = cur;
+							total = max;
+							handler.post(new Runnable() {
+								@Override
+								public void run() {
+									onProgress(cur, max);
+								}
+							});
+						}
+					});
+					handler.post(new Runnable() {
+						@Override
+						public void run() {
+							onDone(filename);
+						}
+					});
+				} finally {
+					wakelock.release();
+				}
+			}
+		}, "ExportService");
+		thread.start();
+	}
+
+	@SuppressWarnings("deprecation")
+	@SuppressLint("NewApi")
+	private Notification buildNotification() {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+			return notificationBuilder.build();
+		} else {
+			return notificationBuilder.getNotification();
+		}
+	}
+
+	private void onProgress(int cur, int max) {
+		// the notification is only updated when the percentage changes
+		int percentage = (max > 0) ? (int)((long)cur * 100 / max) : 0;
+		if (percentage != notificationPercentage) {
+			notificationPercentage = percentage;
+			notificationBuilder.
+				setProgress(100, percentage, false).
+				setContentText(String.valueOf(percentage) + "%");
+			notificationManager.notify(NOTIFICATION_ID, buildNotification());
+		}
+
+		Intent i = new Intent(NOTIFY_BROADCAST);
+		i.putExtra(EXTRA_PROGRESS, cur);
+		i.putExtra(EXTRA_TOTAL, max);
+		LocalBroadcastManager.getInstance(this).sendBroadcast(i);
+	}
+
+	private void onDone(String filename) {
+		Exporter exporter = this.exporter;
+		boolean cancelled = exporter.isCancelled();
+		boolean nothingNew = exporter.isNothingNew();
+
+		running = false;
+		this.exporter = null;
+		thread = null;
+		stopForeground(true);
+
+		if (!cancelled) {
+			Intent i = new Intent(this, ExportActivity.class);
+			i.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+
+			notificationBuilder = (new Notification.Builder(this)).
+				setSmallIcon(R.drawable.ic_stat_service).
+				setContentIntent(PendingIntent.getActivity(this, 0, i, 0)).
+				setWhen(System.currentTimeMillis()).
+				setAutoCancel(true).
+				setContentTitle(getString(R.string.export_export)).
+				setContentText(getString(nothingNew ? R.string.export_nothing_new : (filename != null) ? R.string.export_notification_complete : R.string.export_failed));
+			notificationManager.notify(NOTIFICATION_ID, buildNotification());
+		}
+
+		Intent i = new Intent(NOTIFY_BROADCAST);
+		i.putExtra(EXTRA_DONE, true);
+		i.putExtra(EXTRA_CANCELLED, cancelled);
+		i.putExtra(EXTRA_NOTHING_NEW, nothingNew);
+		if (filename != null) i.putExtra(EXTRA_FILENAME, filename);
+		i.putExtra(EXTRA_SIMPLIFIED_IN, exporter.getSimplifiedPointsIn());
+		i.putExtra(EXTRA_SIMPLIFIED_OUT, exporter.getSimplifiedPointsOut());
+		LocalBroadcastManager.getInstance(this).sendBroadcast(i);
+
+		stopSelf();
+	}
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2013 Jorrit "Chainfire" Jongma
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.chainfire.geolog.service;
+
+import java.util.Locale;
+
+import eu.chainfire.geolog.Debug;
+import eu.chainfire.geolog.data.Database.Accuracy;
+
+// Keeps the wanted location and activity requests apart from the ones registered, and only
+// calls the sources for real differences. A changed request replaces the registered one
+// directly, without a remove first, so the location provider isn't restarted in between.
+// Registrations are at least MIN_REGISTRATION_INTERVAL apart per source: a change coming in
+// sooner is held back until then, and dropped if the wanted state has returned to the
+// registered one by that time, as happens when the detected activity flaps. Removals are
+// never held back.
+public class RequestManager {
+	public static final long MIN_REGISTRATION_INTERVAL = 15 * 1000;
+
+	private final TrackingEngine.LocationSource locationSource;
+	private final TrackingEngine.ActivitySource activitySource;
+	private boolean log = true;
+
+	private Accuracy wantedAccuracy = Accuracy.NONE;
+	private int wantedLocationInterval = 0;
+	private int wantedActivityInterval = 0;
+
+	private Accuracy registeredAccuracy = Accuracy.NONE;
+	private int registeredLocationInterval = 0;
+	private int registeredActivityInterval = 0;
+
+	// elapsedRealtime of the last registration, -1 if none
+	private long locationRegistered = -1;
+	private long activityRegistered = -1;
+	private boolean locationHeld = false;
+	private boolean activityHeld = false;
+
+	private long locationRegistrations = 0;
+	private long locationRemovals = 0;
+	private long activityRegistrations = 0;
+	private long activityRemovals = 0;
+	private long held = 0;
+	private long dropped = 0;
+
+	public RequestManager(TrackingEngine.LocationSource locationSource, TrackingEngine.ActivitySource activitySource) {
+		this.locationSource = locationSource;
+		this.activitySource = activitySource;
+	}
+
+	public void setLogging(boolean log) {
+		this.log = log;
+	}
+
+	private boolean isLogging() {
+		return log && Debug.isEnabled(Debug.SERVICE, Debug.INFO);
+	}
+
+	// NONE or an interval of 0 means no location updates
+	public void setLocation(Accuracy accuracy, int interval) {
+		if ((accuracy == Accuracy.NONE) || (interval <= 0)) {
+			accuracy = Accuracy.NONE;
+			interval = 0;
+		}
+		wantedAccuracy = accuracy;
+		wantedLocationInterval = interval;
+	}
+
+	// an interval of 0 means no activity updates
+	public void setActivity(int interval) {
+		wantedActivityInterval = Math.max(interval, 0);
+	}
+
+	// The sources have lost their registrations (disconnected), the wanted state is registered
+	// again by the next apply()
+	public void reset() {
+		registeredAccuracy = Accuracy.NONE;
+		registeredLocationInterval = 0;
+		registeredActivityInterval = 0;
+		locationRegistered = -1;
+		activityRegistered = -1;
+		locationHeld = false;
+		activityHeld = false;
+	}
+
+	// Registers the differences that are due. Returns the elapsedRealtime at which apply() needs
+	// to be called again for a change held back, -1 if none.
+	public long apply(long now) {
+		long due = -1;
+
+		if ((wantedAccuracy == registeredAccuracy) && (wantedLocationInterval == registeredLocationInterval)) {
+			if (locationHeld) dropped++;
+			locationHeld = false;
+		} else if (wantedLocationInterval == 0) {
+			if (isLogging()) Debug.log(Debug.SERVICE, Debug.INFO, "Location: remove");
+			locationSource.removeLocationUpdates();
+			locationRemovals++;
+			registeredAccuracy = Accuracy.NONE;
+			registeredLocationInterval = 0;
+			locationHeld = false;
+		} else if (isHeld(now, locationRegistered)) {
+			if (!locationHeld) held++;
+			locationHeld = true;
+			due = locationRegistered + MIN_REGISTRATION_INTERVAL;
+		} else {
+			if (isLogging()) Debug.log(Debug.SERVICE, Debug.INFO, "Location: %s %ds --> %s %ds", registeredAccuracy, registeredLocationInterval, wantedAccuracy, wantedLocationInterval);
+			locationSource.requestLocationUpdates(wantedAccuracy, wantedLocationInterval);
+			locationRegistrations++;
+			registeredAccuracy = wantedAccuracy;
+			registeredLocationInterval = wantedLocationInterval;
+			locationRegistered = now;
+			locationHeld = false;
+		}
+
+		if (wantedActivityInterval == registeredActivityInterval) {
+			if (activityHeld) dropped++;
+			activityHeld = false;
+		} else if (wantedActivityInterval == 0) {
+			if (isLogging()) Debug.log(Debug.SERVICE, Debug.INFO, "Activity: remove");
+			activitySource.removeActivityUpdates();
+			activityRemovals++;
+			registeredActivityInterval = 0;
+			activityHeld = false;
+		} else if (isHeld(now, activityRegistered)) {
+			if (!activityHeld) held++;
+			activityHeld = true;
+			long activityDue = activityRegistered + MIN_REGISTRATION_INTERVAL;
+			due = (due < 0) ? activityDue : Math.min(due, activityDue);
+		} else {
+			if (isLogging()) Debug.log(Debug.SERVICE, Debug.INFO, "Activity: %ds --> %ds", registeredActivityInterval, wantedActivityInterval);
+			activitySource.requestActivityUpdates(wantedActivityInterval);
+			activityRegistrations++;
+			registeredActivityInterval = wantedActivityInterval;
+			activityRegistered = now;
+			activityHeld = false;
+		}
+
+		return due;
+	}
+
+	private static boolean isHeld(long now, long registered) {
+		// now < registered: clock went backwards, don't wait on it
+		return (registered >= 0) && (now >= registered) && (now < registered + MIN_REGISTRATION_INTERVAL);
+	}
+
+	// as registered with the sources
+	public Accuracy getLocationAccuracy() {
+		return registeredAccuracy;
+	}
+
+	public int getLocationInterval() {
+		return registeredLocationInterval;
+	}
+
+	public int getActivityInterval() {
+		return registeredActivityInterval;
+	}
+
+	public String getStatistics() {
+		return String.format(Locale.ENGLISH, "location +%d -%d, activity +%d -%d, held %d, dropped %d",
+				locationRegistrations, locationRemovals, activityRegistrations, activityRemovals, held, dropped);
+	}
+}
@@ -0,0 +1,419 @@
+/*
+ * Copyright (C) 2013 Jorrit "Chainfire" Jongma
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.chainfire.geolog.service;
+
+import eu.chainfire.geolog.Debug;
+import eu.chainfire.geolog.data.Database;
+import eu.chainfire.geolog.data.Database.Accuracy;
+import eu.chainfire.geolog.data.Database.Activity;
+import eu.chainfire.geolog.data.Database.Profile.Type;
+
+// The adaptive part of BackgroundService: which location and activity updates to request for
+// the current profile and activity, delaying reductions in accuracy, and folding duplicate
+// fixes before they are written. Time, the location and activity providers and the output are
+// injected, so the same logic runs against Play Services in the service and against a virtual
+// clock in TrackingSimulator (tools/). Pure Java, not thread-safe: call from a single thread.
+public class TrackingEngine {
+	public static final int FLAG_SETUP = 1;
+	public static final int FLAG_ACTIVITY_UPDATE = 2;
+	public static final int FLAG_LOCATION_UPDATE = 4;
+	public static final int FLAG_PROFILE = 8;
+
+	// after a profile change, accuracy is not reduced for this long
+	public static final long PROFILE_GRACE_PERIOD = 90 * 1000;
+
+	// UNKNOWN activity is ignored for this long after a known activity
+	public static final long UNKNOWN_SUPPRESS_PERIOD = 2 * 60 * 1000;
+
+	public interface Clock {
+		public long elapsedRealtime();
+		public long currentTimeMillis();
+
+		// update(0) should be called at (or after) this elapsedRealtime, replaces a previous alarm
+		public void setAlarm(long elapsedRealtime);
+		public void cancelAlarm();
+	}
+
+	// a request replaces the previous one, see RequestManager
+	public interface LocationSource {
+		public void requestLocationUpdates(Accuracy accuracy, int interval);
+		public void removeLocationUpdates();
+	}
+
+	public interface ActivitySource {
+		public void requestActivityUpdates(int interval);
+		public void removeActivityUpdates();
+	}
+
+	public interface Sink {
+		// a row to write
+		public void add(Database.Location location);
+
+		// write out what was added so far
+		public void flush();
+
+		// the profile is OFF
+		public void stop();
+
+		// lastLocation changed
+		public void updated(Database.Location lastLocation);
+
+		// The requests in effect changed, or the activity or profile they are for. accuracy is
+		// NONE and locationInterval 0 if no location updates are requested, activityInterval 0
+		// if no activity updates are.
+		public void requests(Database.Profile profile, Activity activity, Accuracy accuracy, int locationInterval, int activityInterval);
+	}
+
+	private final Clock clock;
+	private final Sink sink;
+	private final RequestManager requestManager;
+	private boolean log = true;
+
+	private boolean connected = false;
+	private Database.Profile currentProfile = null;
+
+	private Activity lastActivity = Activity.UNKNOWN;
+	private int lastConfidence = 0;
+	private Database.Location lastFix = null;
+	private Database.Location lastLocation = null;
+	private long lastLocationDuplicates = 0;
+	private long lastNonUnknown = 0;
+
+	private Accuracy lastLocationAccuracy = Accuracy.NONE;
+	private int lastLocationInterval = -1;
+	private int lastActivityInterval = -1;
+	private int lastBatteryLevel = 0;
+	private boolean isSegmentStart = true;
+	private long lastProfileUpdate;
+
+	private long scheduledReduceAccuracyTime = 0;
+	private long alarmTime = -1;
+
+	// as last passed to Sink.requests()
+	private long reportedProfileId = 0;
+	private Activity reportedActivity = null;
+	private Accuracy reportedAccuracy = null;
+	private int reportedLocationInterval = -1;
+	private int reportedActivityInterval = -1;
+
+	public TrackingEngine(Clock clock, LocationSource locationSource, ActivitySource activitySource, Sink sink) {
+		this.clock = clock;
+		this.sink = sink;
+		requestManager = new RequestManager(locationSource, activitySource);
+		lastProfileUpdate = clock.elapsedRealtime();
+	}
+
+	// Debug needs Android, turn off when running on a plain JVM
+	public void setLogging(boolean log) {
+		this.log = log;
+		requestManager.setLogging(log);
+	}
+
+	private boolean isLogging(int level) {
+		return log && Debug.isEnabled(Debug.SERVICE, level);
+	}
+
+	// nothing is requested until both sources are connected and there is a profile
+	public void setConnected(boolean connected) {
+		// registrations don't survive a disconnect
+		if (!connected) requestManager.reset();
+		this.connected = connected;
+	}
+
+	// call update(FLAG_PROFILE) after changing profiles
+	public void setProfile(Database.Profile profile) {
+		currentProfile = profile;
+	}
+
+	public Database.Profile getProfile() {
+		return currentProfile;
+	}
+
+	public void setBatteryLevel(int level) {
+		lastBatteryLevel = level;
+	}
+
+	public Activity getActivity() {
+		return lastActivity;
+	}
+
+	public Database.Location getLastLocation() {
+		return lastLocation;
+	}
+
+	public Accuracy getLocationAccuracy() {
+		return lastLocationAccuracy;
+	}
+
+	public int getLocationInterval() {
+		return lastLocationInterval;
+	}
+
+	public int getActivityInterval() {
+		return lastActivityInterval;
+	}
+
+	public RequestManager getRequestManager() {
+		return requestManager;
+	}
+
+	public void setActivity(Activity activity, int confidence) {
+		long now = clock.elapsedRealtime();
+		if ((activity == Activity.UNKNOWN) && (now < lastNonUnknown + UNKNOWN_SUPPRESS_PERIOD) && (now > lastNonUnknown)) {
+			return;
+		}
+		if (activity != Activity.UNKNOWN) {
+			lastNonUnknown = now;
+		}
+
+		if (isLogging(Debug.VERBOSE)) Debug.log(Debug.SERVICE, Debug.VERBOSE, "A: %s (%d%%)", Database.activityToString(activity), confidence);
+
+		lastActivity = activity;
+		lastConfidence = confidence;
+		update(FLAG_ACTIVITY_UPDATE);
+	}
+
+	// fix: time, position and accuracy distance, other fields are ignored. Not copied, the
+	// caller must not change it afterwards.
+	public void setLocation(Database.Location fix) {
+		if (isLogging(Debug.VERBOSE)) Debug.log(Debug.SERVICE, Debug.VERBOSE, "L: lat=%.8f long=%.5f alt=%.5f bearing=%.4f speed=%.4f accuracy=%.2f", fix.getLatitude(), fix.getLongitude(), fix.getAltitude(), fix.getBearing(), fix.getSpeed(), fix.getAccuracyDistance());
+
+		lastFix = fix;
+		update(FLAG_LOCATION_UPDATE);
+	}
+
+	private static void loadFromFix(Database.Location into, Database.Location fix) {
+		into.setTime(fix.getTime());
+		into.setLatitude(fix.getLatitude());
+		into.setLongitude(fix.getLongitude());
+		into.setAltitude(fix.getAltitude());
+		into.hasAltitude(fix.hasAltitude());
+		into.setBearing(fix.getBearing());
+		into.hasBearing(fix.hasBearing());
+		into.setSpeed(fix.getSpeed());
+		into.hasSpeed(fix.hasSpeed());
+		into.setAccuracyDistance(fix.getAccuracyDistance());
+		into.hasAccuracyDistance(fix.hasAccuracyDistance());
+	}
+
+	public void update(int flags) {
+		if (!(connected && (currentProfile != null))) return;
+
+		if (currentProfile.getType() == Type.OFF) {
+			sink.stop();
+		}
+
+		if ((flags & FLAG_PROFILE) == FLAG_PROFILE) {
+			if (isLogging(Debug.INFO)) Debug.log(Debug.SERVICE, Debug.INFO, "Profile update");
+
+			sink.flush();
+
+			lastActivity = Activity.UNKNOWN;
+			lastConfidence = 0;
+
+			scheduledReduceAccuracyTime = 0L;
+			lastProfileUpdate = clock.elapsedRealtime();
+		}
+
+		// what the fix was made with
+		Accuracy originalAccuracy = requestManager.getLocationAccuracy();
+
+		Database.Profile.ActivitySettings wanted = currentProfile.getActivitySettings(lastActivity);
+		Accuracy wantedAccuracy = wanted.getAccuracy();
+		int wantedLocationInterval = wanted.getLocationInterval();
+		int wantedActivityInterval = wanted.getActivityInterval();
+
+		boolean allowUpdateActivityInterval = true;
+		boolean allowUpdateLocationInterval = true;
+		boolean allowUpdateLocationAccuracy = true;
+
+		long now = clock.elapsedRealtime();
+		if (
+				(
+						(now > lastProfileUpdate + PROFILE_GRACE_PERIOD) ||
+						(now < lastProfileUpdate)
+				) &&
+				(currentProfile.getReduceAccuracyDelay() > 0) &&
+				(
+						(wantedActivityInterval > lastActivityInterval) ||
+						(wantedLocationInterval > lastLocationInterval) ||
+						(Database.accuracyToInt(wantedAccuracy) < Database.accuracyToInt(lastLocationAccuracy))
+				)
+		) {
+			long left = 0;
+
+			if (scheduledReduceAccuracyTime == 0) {
+				left = currentProfile.getReduceAccuracyDelay() * 1000;
+				scheduledReduceAccuracyTime = now + left;
+			} else {
+				left = scheduledReduceAccuracyTime - now;
+			}
+
+			if (left <= 0) scheduledReduceAccuracyTime = 0L;
+
+			allowUpdateActivityInterval = ((left <= 0) || (wantedActivityInterval < lastActivityInterval) || (lastActivityInterval == -1));
+			allowUpdateLocationInterval = ((left <= 0) || (wantedLocationInterval < lastLocationInterval) || (lastLocationInterval == -1));
+			allowUpdateLocationAccuracy = ((left <= 0) || (Database.accuracyToInt(wantedAccuracy) > Database.accuracyToInt(lastLocationAccuracy)));
+
+			if (!allowUpdateActivityInterval) wantedActivityInterval = lastActivityInterval;
+			if (!allowUpdateLocationInterval) wantedLocationInterval = lastLocationInterval;
+			if (!allowUpdateLocationAccuracy) wantedAccuracy = lastLocationAccuracy;
+
+			if (isLogging(Debug.INFO)) {
+				if (!allowUpdateActivityInterval) Debug.log(Debug.SERVICE, Debug.INFO, "ActivityInterval --> Delay (%ds remaining)", (left / 1000));
+				if (!allowUpdateLocationInterval) Debug.log(Debug.SERVICE, Debug.INFO, "LocationInterval --> Delay (%ds remaining)", (left / 1000));
+				if (!allowUpdateLocationAccuracy) Debug.log(Debug.SERVICE, Debug.INFO, "LocationAccuracy --> Delay (%ds remaining)", (left / 1000));
+			}
+		} else {
+			scheduledReduceAccuracyTime = 0;
+		}
+
+		if ((wantedAccuracy != lastLocationAccuracy) || (wantedLocationInterval != lastLocationInterval)) {
+			if (isLogging(Debug.INFO)) {
+				String s = "NONE";
+				if (wantedAccuracy == Accuracy.LOW) s = "LOW";
+				if (wantedAccuracy == Accuracy.HIGH) s = "HIGH";
+				Debug.log(Debug.SERVICE, Debug.INFO, "Location --> %s %ds", s, wantedLocationInterval);
+			}
+
+			if ((wantedAccuracy == Accuracy.NONE) || (wantedLocationInterval == 0)) {
+				// segment ends, don't keep its tail in memory while we may sleep for hours
+				sink.flush();
+			} else if ((lastLocationAccuracy == Accuracy.NONE) || (lastLocationInterval == 0)) {
+				isSegmentStart = true;
+			}
+			requestManager.setLocation(wantedAccuracy, wantedLocationInterval);
+
+			lastLocationAccuracy = wantedAccuracy;
+			lastLocationInterval = wantedLocationInterval;
+		}
+
+		if (wantedActivityInterval != lastActivityInterval) {
+			if (isLogging(Debug.INFO)) Debug.log(Debug.SERVICE, Debug.INFO, "Activity --> %ds", wantedActivityInterval);
+
+			if ((wantedActivityInterval == 0) && (lastActivityInterval != 0)) {
+				lastActivity = Activity.UNKNOWN;
+				lastConfidence = 0;
+			}
+			requestManager.setActivity(wantedActivityInterval);
+
+			lastActivityInterval = wantedActivityInterval;
+		}
+
+		// one alarm, for whichever is first: reducing accuracy or a registration held back
+		long due = requestManager.apply(now);
+		if (scheduledReduceAccuracyTime != 0) {
+			due = (due < 0) ? scheduledReduceAccuracyTime + 1000 : Math.min(due, scheduledReduceAccuracyTime + 1000);
+		}
+		if (due != alarmTime) {
+			if (due < 0) {
+				clock.cancelAlarm();
+			} else {
+				clock.setAlarm(due);
+			}
+			alarmTime = due;
+		}
+
+		if ((flags & FLAG_ACTIVITY_UPDATE) == FLAG_ACTIVITY_UPDATE) {
+			if (
+					(lastLocation == null) ||
+					(lastLocation.getActivity() != lastActivity) ||
+					(lastLocation.getConfidence() != lastConfidence)
+			) {
+				if (isLogging(Debug.VERBOSE)) Debug.log(Debug.SERVICE, Debug.VERBOSE, "Activity update");
+				if (lastLocation == null) {
+					lastLocationDuplicates = 0;
+
+					lastLocation = new Database.Location();
+					lastLocation.setTime(clock.currentTimeMillis());
+				}
+				lastLocation.setActivity(lastActivity);
+				lastLocation.setConfidence(lastConfidence);
+			}
+		} else if ((flags & FLAG_LOCATION_UPDATE) == FLAG_LOCATION_UPDATE) {
+			if (
+					(lastLocation == null) ||
+					(lastFix == null) ||
+					(lastLocation.getLatitude() != lastFix.getLatitude()) ||
+					(lastLocation.getLongitude() != lastFix.getLongitude()) ||
+					(lastLocation.getAccuracyDistance() > lastFix.getAccuracyDistance()) ||
+					(lastLocation.getActivity() != lastActivity) ||
+					(lastLocation.getConfidence() != lastConfidence) ||
+					(lastLocation.getAccuracySetting() != originalAccuracy) ||
+					(isSegmentStart)
+			) {
+				if (isLogging(Debug.VERBOSE)) Debug.log(Debug.SERVICE, Debug.VERBOSE, "Location update");
+
+				if (lastLocationDuplicates > 0) {
+					if (isLogging(Debug.VERBOSE)) Debug.log(Debug.SERVICE, Debug.VERBOSE, "Saving last duplicate (out of %d)", lastLocationDuplicates);
+					sink.add(lastLocation);
+				}
+
+				if (isSegmentStart) {
+					// commit the previous segment before starting a new one
+					sink.flush();
+				}
+
+				lastLocationDuplicates = 0;
+
+				Database.Location loc = new Database.Location();
+				loc.setActivity(lastActivity);
+				loc.setConfidence(lastConfidence);
+				loc.setBattery(lastBatteryLevel);
+				loc.setAccuracySetting(originalAccuracy);
+				loc.isSegmentStart(isSegmentStart);
+				loadFromFix(loc, lastFix);
+				sink.add(loc);
+
+				lastLocation = loc;
+				isSegmentStart = false;
+			} else if (
+					(lastLocation != null) &&
+					(lastFix != null)
+			) {
+				lastLocationDuplicates++;
+
+				lastLocation.setActivity(lastActivity);
+				lastLocation.setConfidence(lastConfidence);
+				lastLocation.setBattery(lastBatteryLevel);
+				lastLocation.setAccuracySetting(originalAccuracy);
+				lastLocation.isSegmentStart(isSegmentStart);
+				loadFromFix(lastLocation, lastFix);
+			}
+		}
+
+		if (lastLocation != null) {
+			sink.updated(lastLocation);
+		}
+
+		// by id, a changed profile may be loaded into the same instance
+		if (
+				(currentProfile.getId() != reportedProfileId) ||
+				(lastActivity != reportedActivity) ||
+				(requestManager.getLocationAccuracy() != reportedAccuracy) ||
+				(requestManager.getLocationInterval() != reportedLocationInterval) ||
+				(requestManager.getActivityInterval() != reportedActivityInterval)
+		) {
+			reportedProfileId = currentProfile.getId();
+			reportedActivity = lastActivity;
+			reportedAccuracy = requestManager.getLocationAccuracy();
+			reportedLocationInterval = requestManager.getLocationInterval();
+			reportedActivityInterval = requestManager.getActivityInterval();
+			sink.requests(currentProfile, lastActivity, reportedAccuracy, reportedLocationInterval, reportedActivityInterval);
+		}
+	}
+}
@@ -17,26 +17,31 @@
 package eu.chainfire.geolog.ui;
 
 import java.sql.Date;
-import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Locale;
 
 import eu.chainfire.geolog.R;
+import eu.chainfire.geolog.data.AccuracyFilter;
 import eu.chainfire.geolog.data.Database;
 import eu.chainfire.geolog.data.Exporter;
 import eu.chainfire.geolog.data.Exporter.Format;
+import eu.chainfire.geolog.service.ExportService;
 
 import android.app.Activity;
 import android.app.AlertDialog;
+import android.app.ProgressDialog;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.DialogInterface.OnClickListener;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.content.res.TypedArray;
 import android.database.Cursor;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.preference.CheckBoxPreference;
 import android.preference.EditTextPreference;
 import android.preference.ListPreference;
 import android.preference.Preference;
@@ -45,6 +50,8 @@ import android.preference.PreferenceActivity;
 import android.preference.PreferenceCategory;
 import android.preference.PreferenceManager;
 import android.preference.PreferenceScreen;
+import android.support.v4.content.LocalBroadcastManager;
+import android.text.Html;
 import android.text.InputType;
 import android.text.format.DateFormat;
 import android.view.LayoutInflater;
@@ -65,6 +72,25 @@ public class ExportActivity extends PreferenceActivity {
 	public static final String VALUE_FORMAT_KML = "kml";
 	public static final String PREF_FORMAT_DEFAULT = VALUE_FORMAT_GPX;
 	
+	public static final String PREF_COMPRESSION = "compression";
+	public static final String VALUE_COMPRESSION_NONE = "0";
+	public static final String VALUE_COMPRESSION_FAST = "1";
+	public static final String VALUE_COMPRESSION_NORMAL = "6";
+	public static final String VALUE_COMPRESSION_BEST = "9";
+	public static final String PREF_COMPRESSION_DEFAULT = VALUE_COMPRESSION_NONE;
+	
+	public static final String PREF_INCREMENTAL = "incremental";
+	public static final boolean PREF_INCREMENTAL_DEFAULT = false;
+	
+	public static final String PREF_SPLIT = "split";
+	public static final String VALUE_SPLIT_NONE = "none";
+	public static final String VALUE_SPLIT_DAY = "day";
+	public static final String VALUE_SPLIT_TRACKS_10 = "tracks:10";
+	public static final String VALUE_SPLIT_TRACKS_100 = "tracks:100";
+	public static final String VALUE_SPLIT_SIZE_10 = "size:10";
+	public static final String VALUE_SPLIT_SIZE_50 = "size:50";
+	public static final String PREF_SPLIT_DEFAULT = VALUE_SPLIT_NONE;
+	
 	public static final String PREF_TRACK_MERGE_GAP = "track_merge_gap";
 	public static final int PREF_TRACK_MERGE_GAP_DEFAULT = 900;
 	
@@ -80,6 +106,9 @@ public class ExportActivity extends PreferenceActivity {
 	public static final int PREF_TRACK_MIN_POINTS_DEFAULT = 5;
 	public static final int PREF_TRACK_MIN_TIME_DEFAULT = 60;
 	public static final int PREF_TRACK_MIN_DISTANCE_DEFAULT = 1000;
+	
+	public static final String PREF_SIMPLIFY_TOLERANCE = "simplify_tolerance";
+	public static final long PREF_SIMPLIFY_TOLERANCE_DEFAULT = 0;
 
 	public static final String PREF_ACC_LP_UNKNOWN = "acc_lp_unknown";
 	public static final String PREF_ACC_LP_STILL = "acc_lp_still";
@@ -111,12 +140,16 @@ public class ExportActivity extends PreferenceActivity {
 	
 	private SharedPreferences prefs = null;
 	private ListPreference prefFormat = null;
+	private ListPreference prefCompression = null;
+	private CheckBoxPreference prefIncremental = null;
+	private ListPreference prefSplit = null;
 	private EditTextPreference prefMergeTrackGap = null;
 	private DateTimePickerPreference prefDateStart = null;
 	private DateTimePickerPreference prefDateEnd = null;
 	private EditTextPreference prefTrackMinPoints = null;
 	private EditTextPreference prefTrackMinTime = null;
 	private DistanceEditTextPreference prefTrackMinDistance = null;
+	private DistanceEditTextPreference prefSimplifyTolerance = null;
 	private DistanceEditTextPreference prefAccLPUnknown = null;
 	private DistanceEditTextPreference prefAccLPStill = null;
 	private DistanceEditTextPreference prefAccLPFoot = null;
@@ -138,6 +171,8 @@ public class ExportActivity extends PreferenceActivity {
 	private volatile boolean doneLoading = false;
 	private volatile View progressBar = null;
 	
+	private ProgressDialog exportDialog = null;
+	
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
@@ -180,23 +215,20 @@ public class ExportActivity extends PreferenceActivity {
 					
 					Exporter exporter = new Exporter(ExportActivity.this);
 					exporter.setFormat(prefs.getString(PREF_FORMAT, PREF_FORMAT_DEFAULT).equals(VALUE_FORMAT_GPX) ? Format.GPX : Format.KML);
+					exporter.setIncremental(prefs.getBoolean(PREF_INCREMENTAL, PREF_INCREMENTAL_DEFAULT));
+					exporter.setCompression(Integer.parseInt(prefs.getString(PREF_COMPRESSION, PREF_COMPRESSION_DEFAULT), 10));
+					setSplit(exporter, prefs.getString(PREF_SPLIT, PREF_SPLIT_DEFAULT));
 					exporter.setTrackMergeGap(Long.parseLong(prefs.getString(PREF_TRACK_MERGE_GAP, String.valueOf(PREF_TRACK_MERGE_GAP_DEFAULT)), 10));
 					exporter.setDateStart(prefs.getLong(PREF_DATETIME_START, PREF_DATETIME_START_DEFAULT));
 					exporter.setDateEnd(prefs.getLong(PREF_DATETIME_END, PREF_DATETIME_END_DEFAULT));
 					exporter.setTrackMinPoints(Long.parseLong(prefs.getString(PREF_TRACK_MIN_POINTS, String.valueOf(PREF_TRACK_MIN_POINTS_DEFAULT)), 10));
 					exporter.setTrackMinTime(Long.parseLong(prefs.getString(PREF_TRACK_MIN_TIME, String.valueOf(PREF_TRACK_MIN_TIME_DEFAULT)), 10));
 					exporter.setTrackMinDistance(Long.parseLong(prefs.getString(PREF_TRACK_MIN_DISTANCE, String.valueOf(PREF_TRACK_MIN_DISTANCE_DEFAULT)), 10));
-					exporter.setAccuracyLowPowerUnknown(Long.parseLong(prefs.getString(PREF_ACC_LP_UNKNOWN, String.valueOf(PREF_ACC_LP_UNKNOWN_DEFAULT)), 10));
-					exporter.setAccuracyLowPowerStill(Long.parseLong(prefs.getString(PREF_ACC_LP_STILL, String.valueOf(PREF_ACC_LP_STILL_DEFAULT)), 10));
-					exporter.setAccuracyLowPowerFoot(Long.parseLong(prefs.getString(PREF_ACC_LP_FOOT, String.valueOf(PREF_ACC_LP_FOOT_DEFAULT)), 10));
-					exporter.setAccuracyLowPowerBicycle(Long.parseLong(prefs.getString(PREF_ACC_LP_BICYCLE, String.valueOf(PREF_ACC_LP_BICYCLE_DEFAULT)), 10));
-					exporter.setAccuracyLowPowerVehicle(Long.parseLong(prefs.getString(PREF_ACC_LP_VEHICLE, String.valueOf(PREF_ACC_LP_VEHICLE_DEFAULT)), 10));
-					exporter.setAccuracyHighAccuracyUnknown(Long.parseLong(prefs.getString(PREF_ACC_HA_UNKNOWN, String.valueOf(PREF_ACC_HA_UNKNOWN_DEFAULT)), 10));
-					exporter.setAccuracyHighAccuracyStill(Long.parseLong(prefs.getString(PREF_ACC_HA_STILL, String.valueOf(PREF_ACC_HA_STILL_DEFAULT)), 10));
-					exporter.setAccuracyHighAccuracyFoot(Long.parseLong(prefs.getString(PREF_ACC_HA_FOOT, String.valueOf(PREF_ACC_HA_FOOT_DEFAULT)), 10));
-					exporter.setAccuracyHighAccuracyBicycle(Long.parseLong(prefs.getString(PREF_ACC_HA_BICYCLE, String.valueOf(PREF_ACC_HA_BICYCLE_DEFAULT)), 10));
-					exporter.setAccuracyHighAccuracyVehicle(Long.parseLong(prefs.getString(PREF_ACC_HA_VEHICLE, String.valueOf(PREF_ACC_HA_VEHICLE_DEFAULT)), 10));
-					exporter.export(getQuery(false));					
+					exporter.setSimplifyTolerance(getDistance(prefs, PREF_SIMPLIFY_TOLERANCE, PREF_SIMPLIFY_TOLERANCE_DEFAULT));
+					exporter.setAccuracyFilter(getAccuracyFilter(prefs));
+					exporter.setThreads(Runtime.getRuntime().availableProcessors());
+					ExportService.startExport(ExportActivity.this, exporter);
+					showExportProgress(0, 0);
 					return true;
 				}
 			}).
@@ -216,6 +248,82 @@ public class ExportActivity extends PreferenceActivity {
 			return true;
 	}
 
+	@Override
+	protected void onResume() {
+		super.onResume();
+		LocalBroadcastManager.getInstance(this).registerReceiver(exportReceiver, new IntentFilter(ExportService.NOTIFY_BROADCAST));
+		if (ExportService.isRunning()) showExportProgress(ExportService.getProgress(), ExportService.getTotal());
+	}
+
+	@Override
+	protected void onPause() {
+		LocalBroadcastManager.getInstance(this).unregisterReceiver(exportReceiver);
+		// the export continues, the dialog is back on resume
+		if (exportDialog != null) {
+			exportDialog.dismiss();
+			exportDialog = null;
+		}
+		super.onPause();
+	}
+	
+	private void showExportProgress(int cur, int total) {
+		if (exportDialog == null) {
+			exportDialog = new ProgressDialog(this);
+			exportDialog.setTitle(R.string.export_exporting);
+			exportDialog.setIndeterminate(false);
+			exportDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+			// back only hides the dialog
+			exportDialog.setCancelable(true);
+			exportDialog.setButton(DialogInterface.BUTTON_NEGATIVE, getString(R.string.generic_cancel), new OnClickListener() {
+				@Override
+				public void onClick(DialogInterface dialog, int which) {
+					ExportService.cancelExport(ExportActivity.this);
+				}
+			});
+			exportDialog.setProgress(0);
+			exportDialog.setMax(1);
+			exportDialog.show();
+		}
+		if (total > 0) {
+			exportDialog.setMax(total);
+			exportDialog.setProgress(cur);
+		}
+	}
+	
+	private BroadcastReceiver exportReceiver = new BroadcastReceiver() {
+		@Override
+		public void onReceive(Context context, Intent intent) {
+			if (!intent.getBooleanExtra(ExportService.EXTRA_DONE, false)) {
+				if ((exportDialog != null) && exportDialog.isShowing()) {
+					showExportProgress(intent.getIntExtra(ExportService.EXTRA_PROGRESS, 0), intent.getIntExtra(ExportService.EXTRA_TOTAL, 0));
+				}
+				return;
+			}
+			
+			if (exportDialog != null) {
+				exportDialog.dismiss();
+				exportDialog = null;
+			}
+			if (intent.getBooleanExtra(ExportService.EXTRA_CANCELLED, false)) return;
+			
+			boolean ok = intent.hasExtra(ExportService.EXTRA_FILENAME);
+			boolean nothingNew = intent.getBooleanExtra(ExportService.EXTRA_NOTHING_NEW, false);
+			long simplifiedPointsIn = intent.getLongExtra(ExportService.EXTRA_SIMPLIFIED_IN, 0);
+			long simplifiedPointsOut = intent.getLongExtra(ExportService.EXTRA_SIMPLIFIED_OUT, 0);
+			
+			String message = getString(nothingNew ? R.string.export_nothing_new : ok ? R.string.export_complete : R.string.export_failed);
+			if (ok && (simplifiedPointsIn > 0)) {
+				message += "<br><br>" + String.format(getString(R.string.export_simplified), simplifiedPointsOut, simplifiedPointsIn, (int)(100 - (simplifiedPointsOut * 100 / simplifiedPointsIn)));
+			}
+			
+			(new AlertDialog.Builder(ExportActivity.this)).
+				setTitle(R.string.export_export).
+				setMessage(Html.fromHtml(message)).
+				setPositiveButton(R.string.generic_ok, null).
+				show();
+		}
+	};
+
 	@Override
 	protected void onSaveInstanceState(Bundle outState) {
 		outState.putLong(EXTRA_LOG_ID, logid);
@@ -302,6 +410,68 @@ public class ExportActivity extends PreferenceActivity {
 		);
 		root.addPreference(prefFormat);
 		
+		prefCompression = Pref.List(
+				this, 
+				null, 
+				R.string.export_preference_compression_title, 
+				0, 
+				R.string.export_preference_compression_popup, 
+				PREF_COMPRESSION, 
+				PREF_COMPRESSION_DEFAULT, 
+				new String[] {
+					getString(R.string.export_preference_compression_none),
+					getString(R.string.export_preference_compression_fast),
+					getString(R.string.export_preference_compression_normal),
+					getString(R.string.export_preference_compression_best)
+				},
+				new String[] {
+					VALUE_COMPRESSION_NONE,
+					VALUE_COMPRESSION_FAST,
+					VALUE_COMPRESSION_NORMAL,
+					VALUE_COMPRESSION_BEST
+				},
+				true
+		);
+		root.addPreference(prefCompression);
+		
+		prefIncremental = Pref.Check(
+				this, 
+				null, 
+				R.string.export_preference_incremental_title, 
+				R.string.export_preference_incremental_summary, 
+				PREF_INCREMENTAL, 
+				PREF_INCREMENTAL_DEFAULT
+		);
+		root.addPreference(prefIncremental);
+		
+		prefSplit = Pref.List(
+				this, 
+				null, 
+				R.string.export_preference_split_title, 
+				0, 
+				R.string.export_preference_split_popup, 
+				PREF_SPLIT, 
+				PREF_SPLIT_DEFAULT, 
+				new String[] {
+					getString(R.string.export_preference_split_none),
+					getString(R.string.export_preference_split_day),
+					getString(R.string.export_preference_split_tracks_10),
+					getString(R.string.export_preference_split_tracks_100),
+					getString(R.string.export_preference_split_size_10),
+					getString(R.string.export_preference_split_size_50)
+				},
+				new String[] {
+					VALUE_SPLIT_NONE,
+					VALUE_SPLIT_DAY,
+					VALUE_SPLIT_TRACKS_10,
+					VALUE_SPLIT_TRACKS_100,
+					VALUE_SPLIT_SIZE_10,
+					VALUE_SPLIT_SIZE_50
+				},
+				true
+		);
+		root.addPreference(prefSplit);
+		
 		prefMergeTrackGap = Pref.Edit(
 				this, 
 				null,
@@ -335,6 +505,7 @@ public class ExportActivity extends PreferenceActivity {
 		prefTrackMinPoints = Pref.Edit(this, catTrack, R.string.export_preference_track_min_points_title, 0, R.string.export_preference_track_min_points_popup, PREF_TRACK_MIN_POINTS, String.valueOf(PREF_TRACK_MIN_POINTS_DEFAULT), true, InputType.TYPE_CLASS_NUMBER);
 		prefTrackMinTime = Pref.Edit(this, catTrack, R.string.export_preference_track_min_time_title, 0, R.string.export_preference_track_min_time_popup, PREF_TRACK_MIN_TIME, String.valueOf(PREF_TRACK_MIN_TIME_DEFAULT), true, InputType.TYPE_CLASS_NUMBER);
 		prefTrackMinDistance = editDistance(this, catTrack, R.string.export_preference_track_min_distance_title, 0, popup, PREF_TRACK_MIN_DISTANCE, String.valueOf(PREF_TRACK_MIN_DISTANCE_DEFAULT), true);
+		prefSimplifyTolerance = editDistance(this, catTrack, R.string.export_preference_simplify_tolerance_title, 0, popup, PREF_SIMPLIFY_TOLERANCE, String.valueOf(PREF_SIMPLIFY_TOLERANCE_DEFAULT), true);
 		
 		PreferenceCategory catAccLP = Pref.Category(this, root, R.string.export_preference_lowpowerfilter_category);		
 		prefAccLPUnknown = editDistance(this, catAccLP, R.string.profile_preference_caption_unknown, 0, popup, PREF_ACC_LP_UNKNOWN, String.valueOf(PREF_ACC_LP_UNKNOWN_DEFAULT), true);
@@ -366,10 +537,26 @@ public class ExportActivity extends PreferenceActivity {
 		}
 	};
 	
-	private Cursor getQuery(boolean all) {
-		ArrayList<String> conditions = new ArrayList<String>();
-		ArrayList<String> parameters = new ArrayList<String>();
-		
+	private static long getDistance(SharedPreferences prefs, String key, long def) {
+		return Long.parseLong(prefs.getString(key, String.valueOf(def)), 10);
+	}
+	
+	// The export accuracy preferences as filter
+	public static AccuracyFilter getAccuracyFilter(SharedPreferences prefs) {
+		return (new AccuracyFilter()).
+			setThreshold(Database.Accuracy.LOW, Database.Activity.UNKNOWN, getDistance(prefs, PREF_ACC_LP_UNKNOWN, PREF_ACC_LP_UNKNOWN_DEFAULT)).
+			setThreshold(Database.Accuracy.LOW, Database.Activity.STILL, getDistance(prefs, PREF_ACC_LP_STILL, PREF_ACC_LP_STILL_DEFAULT)).
+			setThreshold(Database.Accuracy.LOW, Database.Activity.FOOT, getDistance(prefs, PREF_ACC_LP_FOOT, PREF_ACC_LP_FOOT_DEFAULT)).
+			setThreshold(Database.Accuracy.LOW, Database.Activity.BICYCLE, getDistance(prefs, PREF_ACC_LP_BICYCLE, PREF_ACC_LP_BICYCLE_DEFAULT)).
+			setThreshold(Database.Accuracy.LOW, Database.Activity.VEHICLE, getDistance(prefs, PREF_ACC_LP_VEHICLE, PREF_ACC_LP_VEHICLE_DEFAULT)).
+			setThreshold(Database.Accuracy.HIGH, Database.Activity.UNKNOWN, getDistance(prefs, PREF_ACC_HA_UNKNOWN, PREF_ACC_HA_UNKNOWN_DEFAULT)).
+			setThreshold(Database.Accuracy.HIGH, Database.Activity.STILL, getDistance(prefs, PREF_ACC_HA_STILL, PREF_ACC_HA_STILL_DEFAULT)).
+			setThreshold(Database.Accuracy.HIGH, Database.Activity.FOOT, getDistance(prefs, PREF_ACC_HA_FOOT, PREF_ACC_HA_FOOT_DEFAULT)).
+			setThreshold(Database.Accuracy.HIGH, Database.Activity.BICYCLE, getDistance(prefs, PREF_ACC_HA_BICYCLE, PREF_ACC_HA_BICYCLE_DEFAULT)).
+			setThreshold(Database.Accuracy.HIGH, Database.Activity.VEHICLE, getDistance(prefs, PREF_ACC_HA_VEHICLE, PREF_ACC_HA_VEHICLE_DEFAULT));
+	}
+	
+	private Cursor getQuery(boolean all, String[] projection) {
 		long startDate = -1;
 		long endDate = -1;
 		
@@ -378,31 +565,7 @@ public class ExportActivity extends PreferenceActivity {
 			endDate = prefs.getLong(PREF_DATETIME_END, PREF_DATETIME_END_DEFAULT);
 		}
 		
-		if (startDate >= 0) {
-			conditions.add(Database.Location.COLUMN_NAME_TIME + " >= ?");
-			parameters.add(String.valueOf(startDate));
-		}
-		
-		if (endDate >= 0) {
-			conditions.add(Database.Location.COLUMN_NAME_TIME + " <= ?");
-			parameters.add(String.valueOf(endDate));
-		}
-		
-		String selection = "";
-		for (int i = 0; i < conditions.size(); i++) {
-			selection += conditions.get(i);
-			if (i < conditions.size() - 1) selection += " AND ";
-		}
-		
-		return Database.Helper.getInstance(this).getReadableDatabase().query(
-				Database.Location.TABLE_NAME, 
-				null, 
-				selection, 
-				parameters.toArray(new String[parameters.size()]),
-				null, 
-				null, 
-				null
-		);
+		return Database.Location.list(Database.Helper.getInstance(this), projection, startDate, endDate);
 	}
 	
 	private void updateRecordCount(boolean startup) {
@@ -413,6 +576,16 @@ public class ExportActivity extends PreferenceActivity {
 		}
 	}
 	
+	// VALUE_SPLIT_xxx is mode[:value]
+	private static void setSplit(Exporter exporter, String value) {
+		String[] parts = value.split(":");
+		long splitValue = (parts.length > 1) ? Long.parseLong(parts[1], 10) : 0;
+		if (parts[0].equals("day")) exporter.setSplit(Exporter.Split.DAY, splitValue);
+		else if (parts[0].equals("tracks")) exporter.setSplit(Exporter.Split.TRACKS, splitValue);
+		else if (parts[0].equals("size")) exporter.setSplit(Exporter.Split.SIZE, splitValue);
+		else exporter.setSplit(Exporter.Split.NONE, 0);
+	}
+	
 	private void updatePrefs(String key) {
 		if ((key == null) || (key.equals(PREF_FORMAT))) {
 			String val = prefs.getString(PREF_FORMAT, PREF_FORMAT_DEFAULT);
@@ -420,6 +593,29 @@ public class ExportActivity extends PreferenceActivity {
 			if (val.equals(VALUE_FORMAT_KML)) prefFormat.setSummary(formatValue(getString(R.string.export_preference_format_kml)));
 		}
 		
+		if ((key == null) || (key.equals(PREF_COMPRESSION))) {
+			String val = prefs.getString(PREF_COMPRESSION, PREF_COMPRESSION_DEFAULT);
+			if (val.equals(VALUE_COMPRESSION_NONE)) prefCompression.setSummary(formatValue(getString(R.string.export_preference_compression_none)));
+			if (val.equals(VALUE_COMPRESSION_FAST)) prefCompression.setSummary(formatValue(getString(R.string.export_preference_compression_fast)));
+			if (val.equals(VALUE_COMPRESSION_NORMAL)) prefCompression.setSummary(formatValue(getString(R.string.export_preference_compression_normal)));
+			if (val.equals(VALUE_COMPRESSION_BEST)) prefCompression.setSummary(formatValue(getString(R.string.export_preference_compression_best)));
+		}
+		
+		if ((key == null) || (key.equals(PREF_SPLIT))) {
+			String val = prefs.getString(PREF_SPLIT, PREF_SPLIT_DEFAULT);
+			if (val.equals(VALUE_SPLIT_NONE)) prefSplit.setSummary(formatValue(getString(R.string.export_preference_split_none)));
+			if (val.equals(VALUE_SPLIT_DAY)) prefSplit.setSummary(formatValue(getString(R.string.export_preference_split_day)));
+			if (val.equals(VALUE_SPLIT_TRACKS_10)) prefSplit.setSummary(formatValue(getString(R.string.export_preference_split_tracks_10)));
+			if (val.equals(VALUE_SPLIT_TRACKS_100)) prefSplit.setSummary(formatValue(getString(R.string.export_preference_split_tracks_100)));
+			if (val.equals(VALUE_SPLIT_SIZE_10)) prefSplit.setSummary(formatValue(getString(R.string.export_preference_split_size_10)));
+			if (val.equals(VALUE_SPLIT_SIZE_50)) prefSplit.setSummary(formatValue(getString(R.string.export_preference_split_size_50)));
+		}
+		
+		if ((key != null) && (key.equals(PREF_INCREMENTAL))) {
+			// starting over
+			Exporter.clearWatermark(this);
+		}
+		
 		if ((key == null) || (key.equals(PREF_TRACK_MERGE_GAP))) {
 			prefMergeTrackGap.setSummary(formatValue(Integer.parseInt(prefs.getString(PREF_TRACK_MERGE_GAP, String.valueOf(PREF_TRACK_MERGE_GAP_DEFAULT)), 10)));
 		}
@@ -461,7 +657,7 @@ public class ExportActivity extends PreferenceActivity {
 		for (EditTextPreference pref : new EditTextPreference[] {
 			prefAccLPUnknown, prefAccLPStill, prefAccLPFoot, prefAccLPBicycle, prefAccLPVehicle,	
 			prefAccHAUnknown, prefAccHAStill, prefAccHAFoot, prefAccHABicycle, prefAccHAVehicle,
-			prefTrackMinDistance
+			prefTrackMinDistance, prefSimplifyTolerance
 		}) {
 			if ((key == null) || (key.equals(pref.getKey()))) {
 				long val = Long.parseLong(prefs.getString(pref.getKey(), pref.getText()), 10);
@@ -487,19 +683,20 @@ public class ExportActivity extends PreferenceActivity {
 		protected Integer doInBackground(Integer... arg0) {
 			getDates = (arg0.length > 0);
 			
-			Cursor c = getQuery(getDates);
+			Cursor c = getQuery(getDates, Database.Location.PROJECTION_TIME);
 			try {
 				int count = c.getCount();
 				
 				if (getDates && (count > 0)) {
 					Database.Location loc = new Database.Location();
+					Database.Location.Reader reader = new Database.Location.Reader(c);
 
 					c.moveToFirst();
-					loc.loadFromCursor(c);
+					reader.read(loc);
 					dateFirst = loc.getTime();
 					
 					c.moveToLast();
-					loc.loadFromCursor(c);
+					reader.read(loc);
 					dateLast = loc.getTime();					
 				}
 				
@@ -23,29 +23,26 @@ import java.util.Locale;
 import eu.chainfire.geolog.Debug;
 import eu.chainfire.geolog.R;
 import eu.chainfire.geolog.data.Database;
-import eu.chainfire.geolog.data.LogsProvider;
+import eu.chainfire.geolog.data.LocationPager;
 
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.SharedPreferences;
-import android.database.Cursor;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
 import android.support.v4.app.ListFragment;
-import android.support.v4.app.LoaderManager.LoaderCallbacks;
-import android.support.v4.content.CursorLoader;
-import android.support.v4.content.Loader;
 import android.support.v4.content.LocalBroadcastManager;
-import android.support.v4.widget.CursorAdapter;
 import android.text.Html;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.ListView;
 import android.widget.TextView;
 
-public class LogsFragment extends ListFragment implements LoaderCallbacks<Cursor> {
+public class LogsFragment extends ListFragment implements LocationPager.OnChangeListener {
     static final int INTERNAL_EMPTY_ID = 0x00ff0001;
     static final int INTERNAL_PROGRESS_CONTAINER_ID = 0x00ff0002;
     static final int INTERNAL_LIST_CONTAINER_ID = 0x00ff0003;
@@ -57,8 +54,8 @@ public class LogsFragment extends ListFragment implements LoaderCallbacks<Cursor
 		public TextView location = null;
 	}
 
-	private static final int LIST_LOADER = 1;
-	private CursorAdapter adapter;
+	private LocationPager pager = null;
+	private BaseAdapter adapter;
 	private volatile boolean metric = true;
 	private SharedPreferences prefs;
 
@@ -89,6 +86,15 @@ public class LogsFragment extends ListFragment implements LoaderCallbacks<Cursor
 		}
 	};
 
+	private BroadcastReceiver databaseReceiver = new BroadcastReceiver() {		
+		@Override
+		public void onReceive(Context context, Intent intent) {
+			if (Database.Location.TABLE_NAME.equals(intent.getStringExtra(Database.Helper.EXTRA_TABLE)) && (pager != null)) {
+				pager.update(intent.getLongExtra(Database.Helper.EXTRA_ID, -1));
+			}
+		}
+	};
+
 	@Override
 	public void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
@@ -100,16 +106,15 @@ public class LogsFragment extends ListFragment implements LoaderCallbacks<Cursor
 	@Override
 	public void onViewCreated(View view, Bundle savedInstanceState) {
 		LocalBroadcastManager.getInstance(getActivity()).registerReceiver(preferenceReceiver, new IntentFilter(SettingsFragment.NOTIFY_BROADCAST));	
+		LocalBroadcastManager.getInstance(getActivity()).registerReceiver(databaseReceiver, new IntentFilter(Database.Helper.NOTIFY_BROADCAST));	
 
 		getListView().setSelector(android.R.color.transparent);
 	    
 		setEmptyText(getResources().getString(R.string.logs_empty));	    
 		setListShown(false);
 		
-	    getLoaderManager().initLoader(LIST_LOADER, null, this);
-	    adapter = new CursorAdapter(getActivity(), null, CursorAdapter.FLAG_REGISTER_CONTENT_OBSERVER) {
+	    adapter = new BaseAdapter() {
 	    	private LayoutInflater inflater = null;
-	    	private Database.Location location = null;	    	
 	    	
 	    	private String formatTime = null;
 	    	private String formatActivity = null;
@@ -120,14 +125,29 @@ public class LogsFragment extends ListFragment implements LoaderCallbacks<Cursor
 	    	private SimpleDateFormat simpleDateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSSZ", Locale.ENGLISH);
 	    	
 			@Override
-			public View newView(Context context, Cursor cursor, ViewGroup root) {
-				if (inflater == null) inflater = LayoutInflater.from(context);							
-				return inflater.inflate(R.layout.row_logs, null);
+			public int getCount() {
+				return (pager != null) ? pager.getCount() : 0;
+			}
+
+			@Override
+			public Object getItem(int position) {
+				return (pager != null) ? pager.get(position) : null;
+			}
+
+			@Override
+			public long getItemId(int position) {
+				return position;
 			}
 			
 			@SuppressWarnings("deprecation")
 			@Override
-			public void bindView(View view, Context context, Cursor cursor) {				
+			public View getView(int position, View view, ViewGroup root) {
+				Context context = root.getContext();
+				if (view == null) {
+					if (inflater == null) inflater = LayoutInflater.from(context);							
+					view = inflater.inflate(R.layout.row_logs, null);
+				}
+				
 				ViewHolder holder = (ViewHolder)view.getTag();
 				if (holder == null) { 
 					holder = new ViewHolder();
@@ -138,8 +158,15 @@ public class LogsFragment extends ListFragment implements LoaderCallbacks<Cursor
 					view.setTag(holder);
 				}
 
-				if (location == null) location = new Database.Location();
-				location.loadFromCursor(cursor);
+				Database.Location location = (Database.Location)getItem(position);
+				if (location == null) {
+					// page is being fetched, onPagerChanged will refresh
+					holder.container.setBackgroundDrawable(null);
+					holder.time.setText("");
+					holder.activity.setText("");
+					holder.location.setText("");
+					return view;
+				}
 				
 				if (formatTime == null) formatTime = context.getString(R.string.row_logs_time);
 				if (formatActivity == null) formatActivity = context.getString(R.string.row_logs_activity);
@@ -168,13 +195,22 @@ public class LogsFragment extends ListFragment implements LoaderCallbacks<Cursor
 						String.format(Locale.ENGLISH, formatBattery, (location.getBattery() > 100) ? location.getBattery() - 100 : location.getBattery(), (location.getBattery() > 100) ? "+" : "")
 				));
 				holder.location.setText(Html.fromHtml(String.format(Locale.ENGLISH, formatLocation, location.getLatitude(), location.getLongitude(), accuracy)));
+				
+				return view;
 			}
 		};
 	    setListAdapter(adapter);	    
+	    
+	    pager = new LocationPager(Database.Helper.getInstance(getActivity()), Database.Location.PROJECTION_LIST, this);
 	}
 	
 	@Override
 	public void onDestroyView() {
+		if (pager != null) {
+			pager.close();
+			pager = null;
+		}
+		LocalBroadcastManager.getInstance(getActivity()).unregisterReceiver(databaseReceiver);	
 		LocalBroadcastManager.getInstance(getActivity()).unregisterReceiver(preferenceReceiver);	
 		super.onDestroyView();
 	}
@@ -187,20 +223,20 @@ public class LogsFragment extends ListFragment implements LoaderCallbacks<Cursor
 	}	
 	
 	@Override
-	public Loader<Cursor> onCreateLoader(int arg0, Bundle arg1) {
-	    CursorLoader cursorLoader = new CursorLoader(getActivity(), LogsProvider.CONTENT_URI, null, null, null, Database.Location._ID + " DESC");
-	    return cursorLoader;
-	}
-
-	@Override
-	public void onLoadFinished(Loader<Cursor> arg0, Cursor arg1) {
-		adapter.swapCursor(arg1);
-		setListShown(true);
-	}
-
-	@Override
-	public void onLoaderReset(Loader<Cursor> arg0) {
-		adapter.swapCursor(null);
-		setListShown(false);
+	public void onPagerChanged(LocationPager pager, int inserted) {
+		if (inserted > 0) {
+			// keep the visible rows where they are, unless we're at the top: then show the new rows
+			ListView list = getListView();
+			int first = list.getFirstVisiblePosition();
+			View firstView = list.getChildAt(0);
+			if ((first > 0) || ((firstView != null) && (firstView.getTop() < 0))) {
+				int top = (firstView != null) ? firstView.getTop() : 0;
+				adapter.notifyDataSetChanged();
+				list.setSelectionFromTop(first + inserted, top);
+				return;
+			}
+		}
+		adapter.notifyDataSetChanged();
+		if (pager.isLoaded() && !isShown) setListShown(true);
 	}
 }
@@ -96,6 +96,7 @@ public class ProfilesFragment extends ListFragment implements LoaderCallbacks<Cu
 	    adapter = new CursorAdapter(getActivity(), null, CursorAdapter.FLAG_REGISTER_CONTENT_OBSERVER) {
 	    	private LayoutInflater inflater = null;	    	
 	    	private String formatName = null;
+	    	private Database.Profile.Reader reader = new Database.Profile.Reader();
 	    	
 	    	private ViewHolder holderFromView(View v) {
 	    		if ((v.getTag() != null) && (v.getTag() instanceof ViewHolder)) {
@@ -168,7 +169,7 @@ public class ProfilesFragment extends ListFragment implements LoaderCallbacks<Cu
 					view.setTag(holder);
 				}
 
-				holder.profile.loadFromCursor(cursor);
+				reader.setCursor(cursor).read(holder.profile);
 				
 				boolean selected = (holder.profile.getId() == currentProfileId);
 				boolean readonly = (holder.profile.getType() == Database.Profile.Type.OFF);
@@ -0,0 +1,417 @@
+/*
+ * Copyright (C) 2013 Jorrit "Chainfire" Jongma
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.chainfire.geolog.service;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+import eu.chainfire.geolog.data.Database;
+import eu.chainfire.geolog.data.Database.Accuracy;
+import eu.chainfire.geolog.data.Database.Activity;
+import eu.chainfire.geolog.data.Database.Profile;
+import eu.chainfire.geolog.data.EnergyEstimator;
+
+// Replays recorded locations rows through a TrackingEngine on a virtual clock. The rows are
+// the ground truth: position and activity at any time are those of the last row before it.
+// Fixes and activity results are delivered at the intervals the engine requests (the first
+// one FIRST_RESULT_DELAY after the request, at most), and alarms fire when due. Counts
+// request churn, wake-ups (fixes, activity results and alarms), rows written and the energy
+// EnergyEstimator puts on the requests made.
+// A development tool, tools/ is not on the build path and doesn't go into the APK. Runs on a
+// plain JVM, but Database refers to Android and Play Services classes, so the app's classes,
+// android.jar and the Play Services library jar must be on the classpath (only loaded, nothing
+// Android is called with the engine's logging off):
+//   sqlite3 -header -csv geolog.db "SELECT * FROM locations ORDER BY time" > locations.csv
+//   sqlite3 -header -csv geolog.db "SELECT * FROM profiles" > profiles.csv
+//   CP=bin/classes:$ANDROID_SDK/platforms/android-17/android.jar:google-play-services.jar
+//   javac -cp $CP -d bin/tools tools/eu/chainfire/geolog/service/TrackingSimulator.java
+//   java -cp bin/tools:$CP eu.chainfire.geolog.service.TrackingSimulator locations.csv profiles.csv
+public class TrackingSimulator {
+	public static final long FIRST_RESULT_DELAY = 5 * 1000;
+
+	// elapsedRealtime at the first row, a device has usually been up for a while
+	private static final long BOOT_OFFSET = 24 * 60 * 60 * 1000;
+
+	public static class Result {
+		public String profile;
+		public long duration = 0; // ms
+		public int locationRequests = 0;
+		public int locationRemovals = 0;
+		public int activityRequests = 0;
+		public int activityRemovals = 0;
+		public long fixes = 0;
+		public long activityResults = 0;
+		public long alarms = 0;
+		public long rowsWritten = 0;
+		public long flushes = 0;
+		public long[] accuracyTime = new long[Accuracy.values().length]; // ms with location updates at each accuracy
+		public double energy = 0; // mAh
+		public double[] energyPerActivity = new double[Activity.values().length]; // mAh
+		public TreeMap<Long, Double> energyPerDay = new TreeMap<Long, Double>(); // mAh, by local midnight
+
+		public double getEnergyPerDay() {
+			if (duration == 0) return 0;
+			return energy * (24 * 3600000.0) / duration;
+		}
+
+		public int getChurn() {
+			return locationRequests + locationRemovals + activityRequests + activityRemovals;
+		}
+
+		public long getWakeups() {
+			return fixes + activityResults + alarms;
+		}
+
+		@Override
+		public String toString() {
+			String activities = "";
+			for (Activity activity : Activity.values()) {
+				if (energyPerActivity[activity.ordinal()] <= 0) continue;
+				if (activities.length() > 0) activities += ", ";
+				activities += String.format(Locale.ENGLISH, "%s %.1f", Database.activityToString(activity).toLowerCase(Locale.ENGLISH), energyPerActivity[activity.ordinal()]);
+			}
+			return String.format(Locale.ENGLISH, "%s: %.1fh churn=%d (location +%d -%d, activity +%d -%d) wakeups=%d (fixes %d, activity %d, alarms %d) rows=%d flushes=%d high=%.1fh low=%.1fh energy=%.1fmAh/day (%.1fmAh: %s)",
+					profile, duration / 3600000.0, getChurn(), locationRequests, locationRemovals, activityRequests, activityRemovals,
+					getWakeups(), fixes, activityResults, alarms, rowsWritten, flushes,
+					accuracyTime[Accuracy.HIGH.ordinal()] / 3600000.0, accuracyTime[Accuracy.LOW.ordinal()] / 3600000.0, getEnergyPerDay(), energy, activities);
+		}
+	}
+
+	private static class Run implements TrackingEngine.Clock, TrackingEngine.LocationSource, TrackingEngine.ActivitySource, TrackingEngine.Sink {
+		private final List<Database.Location> rows;
+		private final long wallOffset;
+		private final Result result = new Result();
+		private final List<Database.Request> requests = new ArrayList<Database.Request>();
+
+		private long now;
+		private int truth = 0;
+		private long alarmAt = -1;
+		private long locationInterval = 0;
+		private Accuracy locationAccuracy = Accuracy.NONE;
+		private long locationSince = 0;
+		private long nextFix = -1;
+		private long activityInterval = 0;
+		private long nextActivity = -1;
+		private boolean stopped = false;
+
+		public Run(List<Database.Location> rows) {
+			this.rows = rows;
+			now = BOOT_OFFSET;
+			wallOffset = rows.get(0).getTime() - BOOT_OFFSET;
+		}
+
+		private void advance(long to) {
+			now = to;
+			long wall = now + wallOffset;
+			while ((truth + 1 < rows.size()) && (rows.get(truth + 1).getTime() <= wall)) truth++;
+		}
+
+		public Result run(Profile profile) {
+			result.profile = profile.getName();
+
+			TrackingEngine engine = new TrackingEngine(this, this, this, this);
+			engine.setLogging(false);
+			engine.setProfile(profile);
+			engine.setConnected(true);
+			engine.update(TrackingEngine.FLAG_SETUP);
+
+			long end = rows.get(rows.size() - 1).getTime() - wallOffset;
+			while (!stopped) {
+				long next = Long.MAX_VALUE;
+				if (alarmAt >= 0) next = Math.min(next, alarmAt);
+				if (nextActivity >= 0) next = Math.min(next, nextActivity);
+				if (nextFix >= 0) next = Math.min(next, nextFix);
+				if (next > end) break;
+				advance(next);
+
+				Database.Location row = rows.get(truth);
+				if (next == alarmAt) {
+					alarmAt = -1;
+					result.alarms++;
+					engine.update(0);
+				} else if (next == nextActivity) {
+					nextActivity += activityInterval;
+					result.activityResults++;
+					engine.setActivity(row.getActivity(), row.getConfidence());
+				} else {
+					nextFix += locationInterval;
+					result.fixes++;
+					Database.Location fix = new Database.Location();
+					fix.setTime(currentTimeMillis());
+					fix.setLatitude(row.getLatitude());
+					fix.setLongitude(row.getLongitude());
+					fix.setAltitude(row.getAltitude());
+					fix.hasAltitude(row.hasAltitude());
+					fix.setAccuracyDistance(row.getAccuracyDistance());
+					fix.hasAccuracyDistance(row.hasAccuracyDistance());
+					engine.setLocation(fix);
+				}
+			}
+
+			advance(Math.max(now, end));
+			endLocationUpdates();
+			result.duration = end - BOOT_OFFSET;
+			EnergyEstimator estimator = (new EnergyEstimator(TimeZone.getDefault())).add(requests, BOOT_OFFSET + wallOffset, end + wallOffset);
+			result.energy = estimator.getTotal();
+			for (Activity activity : Activity.values()) {
+				result.energyPerActivity[activity.ordinal()] = estimator.getActivity(activity);
+			}
+			result.energyPerDay.putAll(estimator.getPerDay());
+			return result;
+		}
+
+		@Override
+		public long elapsedRealtime() {
+			return now;
+		}
+
+		@Override
+		public long currentTimeMillis() {
+			return now + wallOffset;
+		}
+
+		@Override
+		public void setAlarm(long elapsedRealtime) {
+			alarmAt = Math.max(elapsedRealtime, now);
+		}
+
+		@Override
+		public void cancelAlarm() {
+			alarmAt = -1;
+		}
+
+		@Override
+		public void requestLocationUpdates(Accuracy accuracy, int interval) {
+			result.locationRequests++;
+			// replaces the previous request
+			endLocationUpdates();
+			locationAccuracy = accuracy;
+			locationSince = now;
+			locationInterval = Math.max(interval, 1) * 1000L;
+			nextFix = now + Math.min(locationInterval, FIRST_RESULT_DELAY);
+		}
+
+		private void endLocationUpdates() {
+			if (nextFix >= 0) result.accuracyTime[locationAccuracy.ordinal()] += now - locationSince;
+			nextFix = -1;
+		}
+
+		@Override
+		public void removeLocationUpdates() {
+			result.locationRemovals++;
+			endLocationUpdates();
+		}
+
+		@Override
+		public void requestActivityUpdates(int interval) {
+			result.activityRequests++;
+			activityInterval = Math.max(interval, 1) * 1000L;
+			nextActivity = now + Math.min(activityInterval, FIRST_RESULT_DELAY);
+		}
+
+		@Override
+		public void removeActivityUpdates() {
+			result.activityRemovals++;
+			nextActivity = -1;
+		}
+
+		@Override
+		public void add(Database.Location location) {
+			result.rowsWritten++;
+		}
+
+		@Override
+		public void flush() {
+			result.flushes++;
+		}
+
+		@Override
+		public void stop() {
+			stopped = true;
+		}
+
+		@Override
+		public void updated(Database.Location lastLocation) {
+		}
+
+		@Override
+		public void requests(Profile profile, Database.Activity activity, Accuracy accuracy, int locationInterval, int activityInterval) {
+			requests.add((new Database.Request()).
+					setTime(currentTimeMillis()).
+					setProfileId(profile.getId()).
+					setActivity(activity).
+					setLocationAccuracy(accuracy).
+					setLocationInterval(locationInterval).
+					setActivityInterval(activityInterval));
+		}
+	}
+
+	private final List<Database.Location> rows;
+
+	// rows: ordered by time
+	public TrackingSimulator(List<Database.Location> rows) {
+		this.rows = rows;
+	}
+
+	public Result run(Profile profile) {
+		if (rows.size() == 0) {
+			Result result = new Result();
+			result.profile = profile.getName();
+			return result;
+		}
+		return (new Run(rows)).run(profile);
+	}
+
+	// CSV as written by sqlite3 -csv, with quoted fields
+	private static List<String> splitCsv(String line) {
+		List<String> fields = new ArrayList<String>();
+		StringBuilder field = new StringBuilder();
+		boolean quoted = false;
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (quoted) {
+				if (c == '"') {
+					if ((i + 1 < line.length()) && (line.charAt(i + 1) == '"')) {
+						field.append('"');
+						i++;
+					} else {
+						quoted = false;
+					}
+				} else {
+					field.append(c);
+				}
+			} else if (c == '"') {
+				quoted = true;
+			} else if (c == ',') {
+				fields.add(field.toString());
+				field.setLength(0);
+			} else {
+				field.append(c);
+			}
+		}
+		fields.add(field.toString());
+		return fields;
+	}
+
+	// rows by column name, the first line is the header
+	private static List<HashMap<String, String>> readCsv(String filename) throws IOException {
+		List<HashMap<String, String>> rows = new ArrayList<HashMap<String, String>>();
+		BufferedReader reader = new BufferedReader(new FileReader(filename));
+		try {
+			List<String> header = null;
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.length() == 0) continue;
+				List<String> fields = splitCsv(line);
+				if (header == null) {
+					header = fields;
+					continue;
+				}
+				HashMap<String, String> row = new HashMap<String, String>();
+				for (int i = 0; (i < header.size()) && (i < fields.size()); i++) row.put(header.get(i), fields.get(i));
+				rows.add(row);
+			}
+		} finally {
+			reader.close();
+		}
+		return rows;
+	}
+
+	private static long getLong(HashMap<String, String> row, String column) {
+		String value = row.get(column);
+		if ((value == null) || (value.length() == 0)) return 0;
+		return (long)Double.parseDouble(value);
+	}
+
+	private static double getDouble(HashMap<String, String> row, String column) {
+		String value = row.get(column);
+		if ((value == null) || (value.length() == 0)) return 0;
+		return Double.parseDouble(value);
+	}
+
+	public static List<Database.Location> readLocations(String filename) throws IOException {
+		List<Database.Location> locations = new ArrayList<Database.Location>();
+		for (HashMap<String, String> row : readCsv(filename)) {
+			Database.Location loc = new Database.Location();
+			loc.setActivity(Database.activityFromInt((int)getLong(row, Database.Location.COLUMN_NAME_ACTIVITY)));
+			loc.setConfidence((int)getLong(row, Database.Location.COLUMN_NAME_CONFIDENCE));
+			loc.setTime(getLong(row, Database.Location.COLUMN_NAME_TIME));
+			loc.setLatitude(getDouble(row, Database.Location.COLUMN_NAME_LATITUDE));
+			loc.setLongitude(getDouble(row, Database.Location.COLUMN_NAME_LONGITUDE));
+			loc.setAltitude(getDouble(row, Database.Location.COLUMN_NAME_ALTITUDE));
+			loc.hasAltitude(getLong(row, Database.Location.COLUMN_NAME_HAS_ALTITUDE) != 0);
+			loc.setAccuracyDistance((float)getDouble(row, Database.Location.COLUMN_NAME_ACCURACY_DISTANCE));
+			loc.hasAccuracyDistance(getLong(row, Database.Location.COLUMN_NAME_HAS_ACCURACY_DISTANCE) != 0);
+			loc.setAccuracySetting(Database.accuracyFromInt((int)getLong(row, Database.Location.COLUMN_NAME_ACCURACY_SETTING)));
+			loc.isSegmentStart(getLong(row, Database.Location.COLUMN_NAME_IS_SEGMENT_START) != 0);
+			locations.add(loc);
+		}
+		return locations;
+	}
+
+	private static void readActivitySettings(HashMap<String, String> row, Profile.ActivitySettings settings, String base) {
+		settings.setActivityInterval((int)getLong(row, String.format(Locale.ENGLISH, Profile.BASE_INTERVAL_ACTIVITY, base)));
+		settings.setLocationInterval((int)getLong(row, String.format(Locale.ENGLISH, Profile.BASE_INTERVAL_LOCATION, base)));
+		settings.setAccuracy(Database.accuracyFromInt((int)getLong(row, String.format(Locale.ENGLISH, Profile.BASE_ACCURACY, base))));
+	}
+
+	// skips the OFF profile
+	public static List<Profile> readProfiles(String filename) throws IOException {
+		List<Profile> profiles = new ArrayList<Profile>();
+		for (HashMap<String, String> row : readCsv(filename)) {
+			if (getLong(row, Profile.COLUMN_NAME_TYPE) == 0) continue;
+			Profile profile = new Profile();
+			profile.setType((getLong(row, Profile.COLUMN_NAME_TYPE) == 1) ? Profile.Type.PRESET : Profile.Type.USER);
+			profile.setName(row.get(Profile.COLUMN_NAME_NAME));
+			profile.setReduceAccuracyDelay((int)getLong(row, Profile.COLUMN_NAME_REDUCE_ACCURACY_DELAY));
+			readActivitySettings(row, profile.getUnknown(), Profile.BASE_UNKNOWN);
+			readActivitySettings(row, profile.getStill(), Profile.BASE_STILL);
+			readActivitySettings(row, profile.getFoot(), Profile.BASE_FOOT);
+			readActivitySettings(row, profile.getBicycle(), Profile.BASE_BICYCLE);
+			readActivitySettings(row, profile.getVehicle(), Profile.BASE_VEHICLE);
+			profiles.add(profile);
+		}
+		return profiles;
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.out.println("usage: TrackingSimulator locations.csv profiles.csv");
+			return;
+		}
+		TrackingSimulator simulator = new TrackingSimulator(readLocations(args[0]));
+		for (Profile profile : readProfiles(args[1])) {
+			long start = System.nanoTime();
+			Result result = simulator.run(profile);
+			System.out.println(result.toString() + String.format(Locale.ENGLISH, " [%dms]", (System.nanoTime() - start) / 1000000L));
+			SimpleDateFormat day = new SimpleDateFormat("yyyy-MM-dd", Locale.ENGLISH);
+			for (Map.Entry<Long, Double> entry : result.energyPerDay.entrySet()) {
+				System.out.println(String.format(Locale.ENGLISH, "  %s: %.1fmAh", day.format(new Date(entry.getKey())), entry.getValue()));
+			}
+		}
+	}
+}